@@ -1,7 +1,40 @@
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.random.RandomGenerator;
+import java.util.zip.CRC32C;
 
 /**
  * Single-file Java app:
@@ -9,11 +42,16 @@ import java.util.*;
  * - Shows market data
  * - Buy/Sell with cash balance and portfolio holdings
  * - Tracks transactions and portfolio performance over time
- * - Save/Load portfolio to a local file (Java serialization)
+ * - Save/Load portfolio to a local file (compact binary format)
  *
  * How to run:
  *   javac StockTradingApp.java
  *   java StockTradingApp
+ *   java StockTradingApp --bench     (throughput benchmarks)
+ *   java -Dmarket.clockHz=1000 StockTradingApp   (market ticks on its own clock)
+ *   java -Dportfolio.historyPoints=100000 StockTradingApp   (performance points kept)
+ *   java -Dportfolio.walSync=true StockTradingApp   (each trade forced to disk before it applies)
+ *   java -Dportfolio.autosaveSeconds=10 StockTradingApp   (background autosave cadence, 0 = off)
  */
 public class StockTradingplatform {
 
@@ -21,189 +59,4585 @@ public class StockTradingplatform {
 
     enum OrderType { BUY, SELL }
 
+    /**
+     * How long a limit order may rest: until cancelled, until a deadline,
+     * not at all (immediate-or-cancel), or only if it fills in full at once
+     * (fill-or-kill).
+     */
+    enum TimeInForce { GTC, GTD, IOC, FOK }
+
+    /** Read side of a market: symbol IDs and prices. */
+    interface PriceSource {
+        int idOf(String symbol);
+        String symbolOf(int id);
+        double getPrice(int id);
+        default double getPrice(String symbol) { return getPrice(idOf(symbol)); }
+    }
+
+    /**
+     * Thin view over one column slot of a {@link Market}. Until it is listed the
+     * stock carries its own price; afterwards price and day open live in the
+     * market's arrays.
+     */
     static class Stock implements Serializable {
         private final String symbol;
         private final String name;
-        private double price;         // current price
-        private double dayOpen;       // opening price (for % change)
+        private double price;         // current price (only while unlisted)
+        private double dayOpen;       // opening price (only while unlisted)
+        private Market market;        // owning price engine, null until listed
+        private int id = -1;          // ordinal into the market's columns
+
+        public Stock(String symbol, String name, double initial) {
+            this.symbol = symbol.toUpperCase(Locale.ROOT);
+            this.name = name;
+            this.price = initial;
+            this.dayOpen = initial;
+        }
+
+        void attach(Market market, int id) {
+            this.market = market;
+            this.id = id;
+        }
+
+        public String getSymbol() { return symbol; }
+        public String getName() { return name; }
+        public int getId() { return id; }
+        public double getPrice() { return market == null ? price : market.getPrice(id); }
+        public double getDayOpen() { return market == null ? dayOpen : market.getDayOpen(id); }
+
+        /** Random walk price update with mild drift/volatility */
+        public void tick(Random rng) {
+            if (market == null) {
+                price = Market.step(price, rng.nextGaussian());
+            } else {
+                market.materialize(id);
+                market.price[id] = Market.step(market.price[id], rng.nextGaussian());
+            }
+        }
+
+        /** Reset opening price (e.g., new "day") */
+        public void newSession() {
+            if (market == null) dayOpen = price;
+            else market.dayOpen[id] = market.getPrice(id);
+        }
+
+        public double pctChangeFromOpen() {
+            double open = getDayOpen();
+            return (getPrice() - open) / open * 100.0;
+        }
+    }
+
+    /**
+     * Fixed-point money: amounts are longs in micro-units (1e-6 of a currency
+     * unit). Arithmetic is overflow-checked, so fills and valuations are exact
+     * and reconcile to the micro.
+     */
+    static final class Money {
+        static final long SCALE = 1_000_000L;
+
+        private Money() { }
+
+        /** Nearest micro-unit amount for a floating-point price. */
+        static long of(double amount) {
+            double scaled = amount * SCALE;
+            if (!(Math.abs(scaled) < 0x1p63)) throw new ArithmeticException("Amount out of range: " + amount);
+            return Math.round(scaled);
+        }
+
+        static double toDouble(long micros) { return micros / (double) SCALE; }
+
+        static long add(long a, long b) { return Math.addExact(a, b); }
+        static long sub(long a, long b) { return Math.subtractExact(a, b); }
+        static long times(long micros, int shares) { return Math.multiplyExact(micros, (long) shares); }
+
+        /** micros / n rounded half-up (n > 0). */
+        static long divide(long micros, int n) {
+            return Math.floorDiv(Math.addExact(micros, n / 2), n);
+        }
+    }
+
+    static class Holding implements Serializable {
+        String symbol;
+        int symbolId;
+        int shares;
+        long avgCost;       // micro-units
+        transient boolean valued;   // listed in a ValuationIndex
+
+        public Holding(String symbol, int symbolId) {
+            this.symbol = symbol;
+            this.symbolId = symbolId;
+        }
+
+        public double marketValue(double price) {
+            return shares * price;
+        }
+
+        public long marketValueMicros(long priceMicros) {
+            return Money.times(priceMicros, shares);
+        }
+    }
+
+    static class Transaction implements Serializable {
+        LocalDateTime time;
+        OrderType type;
+        String symbol;
+        int shares;
+        long price;         // micro-units
+        long cashAfter;     // micro-units
+
+        public Transaction(LocalDateTime time, OrderType type, String symbol, int shares, long price, long cashAfter) {
+            this.time = time; this.type = type; this.symbol = symbol;
+            this.shares = shares; this.price = price; this.cashAfter = cashAfter;
+        }
+
+        static LocalDateTime localTime(long epochMillis) {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+        }
+
+        @Override public String toString() {
+            return String.format("%s | %-4s | %-4s x %d @ %.2f | Cash: %.2f",
+                    time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")),
+                    type, symbol, shares, Money.toDouble(price), Money.toDouble(cashAfter));
+        }
+    }
+
+    /** Ring columns start this small and double up to their capacity, so idle histories stay cheap. */
+    static final int INITIAL_RING = 16;
+
+    /**
+     * Fixed-width OHLC bars in a bounded ring, stored as columns. A sample
+     * either updates the newest bar or opens the next one; a sample older than
+     * the newest bar (clock stepped back) is folded into it.
+     */
+    static class OhlcSeries implements Serializable {
+        private final long width;
+        private transient int capacity;
+        private transient long[] start;
+        private transient double[] open, high, low, close;
+        private transient int next;
+        private transient int size;
+        private transient long opened;      // bars ever opened; bar b sits in slot b % capacity
+        private transient ArrayDeque<SaveImage.Chunk> closed;  // closed bars already copied for save images
+
+        OhlcSeries(long widthMillis, int capacity) {
+            if (widthMillis <= 0 || capacity <= 0) throw new IllegalArgumentException("Width and capacity must be positive.");
+            this.width = widthMillis;
+            allocate(capacity, Math.min(capacity, INITIAL_RING));
+        }
+
+        /** Empties the series and sizes its columns for {@code length} bars. */
+        private void allocate(int capacity, int length) {
+            this.capacity = capacity;
+            start = new long[length];
+            open = new double[length];
+            high = new double[length];
+            low = new double[length];
+            close = new double[length];
+            next = size = 0;
+            opened = 0;
+            closed = null;
+        }
+
+        /** Before the first wrap bars sit at [0, size), so growing is a plain copy. */
+        private void grow() {
+            int length = Math.min(capacity, start.length * 2);
+            start = Arrays.copyOf(start, length);
+            open = Arrays.copyOf(open, length);
+            high = Arrays.copyOf(high, length);
+            low = Arrays.copyOf(low, length);
+            close = Arrays.copyOf(close, length);
+        }
+
+        void add(long epochMillis, double v) {
+            long bucket = Math.floorDiv(epochMillis, width) * width;
+            if (size > 0) {
+                int last = slot(size - 1);
+                if (bucket <= start[last]) {
+                    if (v > high[last]) high[last] = v;
+                    if (v < low[last]) low[last] = v;
+                    close[last] = v;
+                    return;
+                }
+            }
+            if (next == start.length && start.length < capacity) grow();
+            start[next] = bucket;
+            open[next] = high[next] = low[next] = close[next] = v;
+            next = (next + 1 == capacity) ? 0 : next + 1;
+            if (size < capacity) size++;
+            opened++;
+        }
+
+        public int size() { return size; }
+        public long width() { return width; }
+
+        /** Visits bars starting in [bucket of from, to], oldest first; returns how many. */
+        int range(long fromMillis, long toMillis, PerformanceHistory.BarVisitor visitor) {
+            long from = Math.floorDiv(fromMillis, width) * width;
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (start[slot(mid)] < from) lo = mid + 1; else hi = mid;
+            }
+            int n = 0;
+            for (int i = lo; i < size; i++, n++) {
+                int s = slot(i);
+                if (start[s] > toMillis) break;
+                visitor.bar(start[s], open[s], high[s], low[s], close[s]);
+            }
+            return n;
+        }
+
+        private int slot(int i) {
+            int s = next - size + i;
+            return (s < 0) ? s + start.length : s;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            out.writeInt(capacity);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                int s = slot(i);
+                out.writeLong(start[s]);
+                out.writeDouble(open[s]);
+                out.writeDouble(high[s]);
+                out.writeDouble(low[s]);
+                out.writeDouble(close[s]);
+            }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            int capacity = in.readInt(), live = in.readInt();
+            if (width <= 0 || capacity <= 0 || live < 0 || live > capacity) throw new InvalidObjectException("Bad OHLC series.");
+            allocate(capacity, Math.max(live, Math.min(capacity, INITIAL_RING)));
+            for (int i = 0; i < live; i++) {
+                start[i] = in.readLong();
+                open[i] = in.readDouble();
+                high[i] = in.readDouble();
+                low[i] = in.readDouble();
+                close[i] = in.readDouble();
+            }
+            size = live;
+            next = (live == capacity) ? 0 : live;
+            opened = live;
+        }
+    }
+
+    /**
+     * Tiered performance history. Raw samples live in a fixed-capacity ring of
+     * columns (epoch millis and value) and are kept for the last hour; every
+     * sample also rolls into 1-minute bars (one week kept) and 1-hour bars
+     * (one year kept), so memory is bounded however long a session runs and
+     * recording never allocates. The first value ever recorded is kept as the
+     * session's base. Only live samples and bars are serialized.
+     */
+    static class PerformanceHistory implements Serializable {
+        static final int DEFAULT_CAPACITY = Integer.getInteger("portfolio.historyPoints", 4096);
+        static final long RAW_MILLIS = 3_600_000L;
+        static final long MINUTE = 60_000L, HOUR = 3_600_000L;
+
+        /** Receives one bar of a range query; raw samples arrive as flat bars. */
+        interface BarVisitor {
+            void bar(long startMillis, double open, double high, double low, double close);
+        }
+
+        private final OhlcSeries minutes = new OhlcSeries(MINUTE, 7 * 24 * 60);
+        private final OhlcSeries hours = new OhlcSeries(HOUR, 366 * 24);
+        private transient int capacity;
+        private transient long[] time;
+        private transient double[] value;
+        private transient int next;     // slot the next sample goes to
+        private transient int size;
+        private double base = Double.NaN;
+
+        PerformanceHistory(int capacity) {
+            if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive.");
+            allocate(capacity, Math.min(capacity, INITIAL_RING));
+        }
+
+        /** Empties the raw ring and sizes its columns for {@code length} samples. */
+        private void allocate(int capacity, int length) {
+            this.capacity = capacity;
+            time = new long[length];
+            value = new double[length];
+            next = size = 0;
+        }
+
+        public void record(long epochMillis, double totalValue) {
+            if (size == 0 && Double.isNaN(base)) base = totalValue;
+            if (next == time.length && time.length < capacity) {
+                int length = Math.min(capacity, time.length * 2);
+                time = Arrays.copyOf(time, length);
+                value = Arrays.copyOf(value, length);
+            }
+            time[next] = epochMillis;
+            value[next] = totalValue;
+            next = (next + 1 == capacity) ? 0 : next + 1;
+            if (size < capacity) size++;
+            while (size > 1 && time[slot(0)] < epochMillis - RAW_MILLIS) size--;
+            minutes.add(epochMillis, totalValue);
+            hours.add(epochMillis, totalValue);
+        }
+
+        /**
+         * Visits [from, to] at the coarsest tier whose bars are no wider than
+         * {@code resolutionMillis}: hourly, per-minute, else raw samples.
+         * Returns the number of bars visited.
+         */
+        public int range(long fromMillis, long toMillis, long resolutionMillis, BarVisitor visitor) {
+            if (resolutionMillis >= HOUR) return hours.range(fromMillis, toMillis, visitor);
+            if (resolutionMillis >= MINUTE) return minutes.range(fromMillis, toMillis, visitor);
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timeAt(mid) < fromMillis) lo = mid + 1; else hi = mid;
+            }
+            int n = 0;
+            for (int i = lo; i < size && timeAt(i) <= toMillis; i++, n++) {
+                double v = valueAt(i);
+                visitor.bar(timeAt(i), v, v, v, v);
+            }
+            return n;
+        }
+
+        public int size() { return size; }
+        public int capacity() { return capacity; }
+
+        /** First value recorded this session, NaN before any. */
+        public double base() { return base; }
+
+        /** Sample {@code i}, counting from the oldest retained (0) to the newest (size - 1). */
+        public long timeAt(int i) { return time[slot(i)]; }
+        public double valueAt(int i) { return value[slot(i)]; }
+
+        private int slot(int i) {
+            if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i);
+            int s = next - size + i;
+            return (s < 0) ? s + time.length : s;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            out.writeInt(capacity);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(timeAt(i));
+                out.writeDouble(valueAt(i));
+            }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            int capacity = in.readInt(), live = in.readInt();
+            if (capacity <= 0 || live < 0 || live > capacity || minutes == null || hours == null) {
+                throw new InvalidObjectException("Bad performance history.");
+            }
+            allocate(capacity, Math.max(live, Math.min(capacity, INITIAL_RING)));
+            for (int i = 0; i < live; i++) {
+                time[i] = in.readLong();
+                value[i] = in.readDouble();
+            }
+            size = live;
+            next = (live == capacity) ? 0 : live;
+        }
+    }
+
+    static class Portfolio implements Serializable {
+        private long cash = 10_000L * Money.SCALE; // starting cash, micro-units
+        private final Map<String, Holding> holdings = new HashMap<>();
+        private final PerformanceHistory performance;
+        private transient ValuationIndex valuation;   // keeps total value current when tracked
+        private transient int valuationSlot;
+        // Full trade history lives in a TransactionJournal; memory keeps a recent window.
+        static final int RECENT_TRADES = Integer.getInteger("portfolio.recentTrades", 64);
+        private final long journalId;
+        private long journalCount;          // records of ours in the journal
+        private transient TransactionJournal journal;
+        private transient ArrayDeque<Transaction> recent;
+        private transient WriteAheadLog wal;          // logs each fill before it is applied
+
+        public Portfolio() {
+            this(new SplittableRandom().nextLong() | 1L, new PerformanceHistory(PerformanceHistory.DEFAULT_CAPACITY));
+        }
+
+        /** Restores a saved portfolio's journal identity and history (SaveCodec). */
+        Portfolio(long journalId, PerformanceHistory performance) {
+            this.journalId = journalId;
+            this.performance = performance;
+        }
+
+        public double getCash() { return Money.toDouble(cash); }
+        public long getCashMicros() { return cash; }
+        public Map<String, Holding> getHoldings() { return holdings; }
+        long journalId() { return journalId; }
+
+        /**
+         * Journals every later fill to {@code j}. Records this portfolio wrote
+         * there before are kept; anything past them (trades never saved), or
+         * another portfolio's journal, is overwritten from the next fill on.
+         */
+        public void attachJournal(TransactionJournal j) {
+            journalCount = j.attach(journalId, journalCount);
+            journal = j;
+        }
+
+        /** Logs every later fill to {@code log} before applying it. */
+        public void attachWal(WriteAheadLog log) { wal = log; }
+
+        /** Up to {@code n} latest transactions, newest first: from the cache when it reaches back far enough, else the journal. */
+        public List<Transaction> recentTransactions(int n, PriceSource symbols) {
+            List<Transaction> out = new ArrayList<>(n);
+            int cached = (recent == null) ? 0 : recent.size();
+            if (journal == null || cached >= Math.min(n, journalCount)) {
+                if (recent == null) return out;
+                for (Iterator<Transaction> it = recent.descendingIterator(); it.hasNext() && out.size() < n; ) out.add(it.next());
+            } else {
+                for (long i = journalCount - 1; i >= 0 && out.size() < n; i--) out.add(journal.read(i, symbols));
+            }
+            return out;
+        }
+        public PerformanceHistory getPerformance() { return performance; }
+
+        /** Uses the tracked value, as of the last tick, when a ValuationIndex follows this portfolio. */
+        public void recordPerformance(PriceSource market) {
+            long value = (valuation != null) ? valuation.valueOf(valuationSlot) : totalValueMicros(market);
+            performance.record(System.currentTimeMillis(), Money.toDouble(value));
+        }
+
+        public double totalValue(PriceSource market) {
+            return Money.toDouble(totalValueMicros(market));
+        }
+
+        public long totalValueMicros(PriceSource market) {
+            long value = cash;
+            for (Holding h : holdings.values()) {
+                long p = Money.of(market.getPrice(h.symbolId));
+                value = Money.add(value, h.marketValueMicros(p));
+            }
+            return value;
+        }
+
+        public void buy(String symbol, int shares, PriceSource market) {
+            buy(market.idOf(symbol), shares, market);
+        }
+
+        public void buy(int symbolId, int shares, PriceSource market) {
+            long price = Money.of(market.getPrice(symbolId));
+            String symbol = market.symbolOf(symbolId);
+            if (price <= 0) throw new IllegalArgumentException("Invalid price.");
+            if (shares <= 0) throw new IllegalArgumentException("Shares must be positive.");
+            long cost = Money.times(price, shares);
+            if (cost > cash) throw new IllegalArgumentException("Insufficient cash.");
+            applyFill(OrderType.BUY, symbolId, symbol, price, shares);
+        }
+
+        public void sell(String symbol, int shares, PriceSource market) {
+            sell(market.idOf(symbol), shares, market);
+        }
+
+        public void sell(int symbolId, int shares, PriceSource market) {
+            String symbol = market.symbolOf(symbolId);
+            Holding h = holdings.get(symbol);
+            if (h == null || h.shares < shares) throw new IllegalArgumentException("Not enough shares to sell.");
+            if (shares <= 0) throw new IllegalArgumentException("Shares must be positive.");
+
+            applyFill(OrderType.SELL, symbolId, symbol, Money.of(market.getPrice(symbolId)), shares);
+        }
+
+        /**
+         * Books one execution at {@code price} micro-units. buy/sell call this
+         * after their checks; order-book fills call it directly, so the caller
+         * is responsible for cash and share availability.
+         */
+        public void applyFill(OrderType side, int symbolId, String symbol, long price, int shares) {
+            applyFill(side, symbolId, symbol, price, shares, System.currentTimeMillis());
+        }
+
+        /** Books one execution made at {@code now} (WAL replay keeps the logged time). */
+        void applyFill(OrderType side, int symbolId, String symbol, long price, int shares, long now) {
+            long amount = Money.times(price, shares);
+            Holding h = holdings.computeIfAbsent(symbol, k -> new Holding(k, symbolId));
+            if (side == OrderType.SELL && h.shares < shares) throw new IllegalArgumentException("Not enough shares to sell.");
+            if (wal != null) wal.logFill(now, side, symbolId, shares, price);
+            if (side == OrderType.BUY) {
+                // Update average cost
+                long totalCostBefore = Money.times(h.avgCost, h.shares);
+                h.shares = Math.addExact(h.shares, shares);
+                h.avgCost = Money.divide(Money.add(totalCostBefore, amount), h.shares);
+                cash = Money.sub(cash, amount);
+            } else {
+                h.shares -= shares;
+                if (h.shares == 0) h.avgCost = 0;
+                cash = Money.add(cash, amount);
+            }
+            if (journal != null) {
+                journal.append(journalCount, now, symbolId, side, shares, price, cash);
+                journalCount++;
+            }
+            remember(new Transaction(Transaction.localTime(now), side, symbol, shares, price, cash));
+            if (valuation != null) valuation.onFill(valuationSlot, h, side, shares, amount);
+        }
+
+        /** Books trades executed elsewhere (legacy saves) into the journal and recent window; balances are untouched. */
+        void importTrades(List<Transaction> trades, PriceSource symbols) {
+            for (Transaction t : trades) {
+                if (journal != null) {
+                    long millis = t.time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    journal.append(journalCount, millis, symbols.idOf(t.symbol), t.type, t.shares, t.price, t.cashAfter);
+                    journalCount++;
+                }
+                remember(t);
+            }
+        }
+
+        private void remember(Transaction t) {
+            if (RECENT_TRADES <= 0) return;
+            if (recent == null) recent = new ArrayDeque<>(RECENT_TRADES);
+            if (recent.size() == RECENT_TRADES) recent.removeFirst();
+            recent.addLast(t);
+        }
+    }
+
+    /**
+     * Columnar price engine: prices and day opens are dense arrays indexed by
+     * symbol ordinal (insertion order), so a tick is a linear sweep over
+     * primitives instead of a walk over heap objects. The ordinal doubles as a
+     * stable symbol ID, so hot paths can price by int without touching strings.
+     */
+    static class Market implements PriceSource, Serializable {
+        static final double TICK_VOL = 0.005;  // ~0.5% std dev per tick
+        static final double MIN_PRICE = 0.01;
+        // log(1 + TICK_VOL * z) has mean ~ -TICK_VOL^2 / 2 and std ~ TICK_VOL (O(vol^4) terms dropped)
+        static final double LOG_DRIFT = -0.5 * TICK_VOL * TICK_VOL;
+        static final int SHARD_SIZE = 4096;    // fixed, so results never depend on core count
+
+        private final Map<String, Stock> stocks = new LinkedHashMap<>();
+        double[] price = new double[16];
+        double[] dayOpen = new double[16];
+        private Stock[] byId = new Stock[16];
+        private long[] asOf = new long[16];    // tick each column was last materialized at (lazy mode)
+        private int size;
+        private long tickCount;
+        private boolean lazy;
+        private boolean parallel;
+        private CorrelatedShocks shocks;
+        private PriceProcess process;          // null: built-in 0.5% random walk
+        private long seed;
+        private transient ReplayFeed replay;   // recorded prices instead of simulation
+        private transient SymbolTable symbolTable;
+        private transient volatile MarketSnapshot published;  // set while a MarketClock drives ticks
+        private transient List<TickListener> tickListeners;
+        private transient Random rng = new Random();
+        private transient ForkJoinPool pool;
+
+        public Market() { }
+
+        public void addStock(Stock s) {
+            Stock prev = stocks.get(s.getSymbol());
+            if (shocks != null && prev == null) {
+                throw new IllegalStateException("Clear the correlation model before listing new symbols.");
+            }
+            int id = (prev != null) ? prev.getId() : size++;
+            if (id == price.length) {
+                price = Arrays.copyOf(price, id * 2);
+                dayOpen = Arrays.copyOf(dayOpen, id * 2);
+                byId = Arrays.copyOf(byId, id * 2);
+                asOf = Arrays.copyOf(asOf, id * 2);
+            }
+            price[id] = s.getPrice();
+            asOf[id] = tickCount;
+            dayOpen[id] = s.getDayOpen();
+            s.attach(this, id);
+            if (process != null) process.onListed(id, price[id]);
+            byId[id] = s;
+            stocks.put(s.getSymbol(), s);
+            symbolTable = null;
+        }
+
+        public Set<String> symbols() { return stocks.keySet(); }
+
+        public int size() { return size; }
+
+        /** Interns a symbol to its stable int ID. */
+        @Override public int idOf(String symbol) {
+            Stock s = stocks.get(symbol.toUpperCase(Locale.ROOT));
+            if (s == null) throw new IllegalArgumentException("Unknown symbol: " + symbol);
+            return s.getId();
+        }
+
+        @Override public String symbolOf(int id) { return get(id).getSymbol(); }
+
+        @Override public double getPrice(String symbol) {
+            return getPrice(idOf(symbol));
+        }
+
+        /** Allocation-free price lookup by symbol ID. */
+        @Override public double getPrice(int id) {
+            if (id < 0 || id >= size) throw new IllegalArgumentException("Unknown symbol id: " + id);
+            if (lazy) materialize(id);
+            return price[id];
+        }
+
+        public double getDayOpen(int id) {
+            if (id < 0 || id >= size) throw new IllegalArgumentException("Unknown symbol id: " + id);
+            return dayOpen[id];
+        }
+
+        /**
+         * Consistent read-only view of all prices. While a MarketClock runs this
+         * is the clock's latest published snapshot and is safe to read from any
+         * thread; otherwise a fresh copy is taken.
+         */
+        public MarketSnapshot snapshot() {
+            MarketSnapshot snap = published;
+            return (snap != null) ? snap : capture();
+        }
+
+        MarketSnapshot capture() {
+            materializeAll();
+            if (symbolTable == null) symbolTable = new SymbolTable(byId, size);
+            return new MarketSnapshot(tickCount, symbolTable,
+                    Arrays.copyOf(price, size), Arrays.copyOf(dayOpen, size));
+        }
+
+        void publish(MarketSnapshot snap) { published = snap; }
+
+        /** Last-trade update from the order book; the column counts as current. */
+        void setLastTrade(int id, double tradePrice) {
+            price[id] = tradePrice;
+            asOf[id] = tickCount;
+        }
+
+        public Stock get(String symbol) { return stocks.get(symbol.toUpperCase(Locale.ROOT)); }
+
+        public Stock get(int id) {
+            if (id < 0 || id >= size) throw new IllegalArgumentException("Unknown symbol id: " + id);
+            return byId[id];
+        }
+
+        public long tickCount() { return tickCount; }
+
+        /**
+         * Switches tickAll to sharded parallel mode. The universe is cut into
+         * fixed SHARD_SIZE shards and each shard draws from its own
+         * SplittableRandom, split in shard order from a per-tick master derived
+         * from (seed, tick number). Prices are therefore bit-identical for a
+         * given seed however many threads the pool has.
+         */
+        public void useParallelTicks(long seed, ForkJoinPool pool) {
+            if (shocks != null) throw new IllegalStateException("Correlated shocks are drawn sequentially.");
+            this.parallel = true;
+            this.seed = seed;
+            this.pool = pool;
+        }
+
+        /** Back to single-threaded ticking on the shared Random. */
+        public void useSequentialTicks() {
+            this.parallel = false;
+        }
+
+        /**
+         * In lazy mode ticks only bump the tick counter; a symbol's price is
+         * caught up with one closed-form multi-step draw the next time it is
+         * read, so per-tick cost scales with the symbols actually observed.
+         * Catch-up draws come from the shared Random, so lazy prices are not
+         * reproducible under a parallel-mode seed.
+         */
+        public void useLazyTicks(boolean lazy) {
+            if (lazy && published != null) throw new IllegalStateException("Lazy catch-up would write from reader threads.");
+            if (lazy && replay != null) throw new IllegalStateException("Replay writes every column it reads.");
+            if (lazy && shocks != null) throw new IllegalStateException("Correlated shocks need every column each tick.");
+            if (lazy && process != null) throw new IllegalStateException("Lazy catch-up needs the built-in random walk.");
+            if (!lazy) materializeAll();
+            this.lazy = lazy;
+        }
+
+        /**
+         * Correlates per-tick shocks across all listed symbols (in ID order) using
+         * the Cholesky factor of {@code corr}, computed once and cached.
+         */
+        public void setCorrelation(double[][] corr) {
+            setShocks(CorrelatedShocks.cholesky(corr));
+        }
+
+        /**
+         * Correlates shocks through k common factors: symbol i gets
+         * sum_j loadings[i][j] * f_j plus idiosyncratic noise scaled to unit
+         * variance. Per-tick cost is O(n * k) instead of O(n^2).
+         */
+        public void setFactorModel(double[][] loadings) {
+            setShocks(CorrelatedShocks.factorModel(loadings));
+        }
+
+        /**
+         * Drives prices with {@code process} instead of the built-in random walk,
+         * or restores the random walk when null. Existing symbols are handed to
+         * the process at their current price. advance(n) then runs n batched
+         * steps, since custom processes have no closed-form skip-ahead.
+         */
+        public void setProcess(PriceProcess process) {
+            if (process != null && lazy) throw new IllegalStateException("Lazy catch-up needs the built-in random walk.");
+            if (process != null) {
+                for (int i = 0; i < size; i++) process.onListed(i, price[i]);
+            }
+            this.process = process;
+        }
+
+        /**
+         * Drives ticks from a recorded feed instead of the simulator, or back to
+         * simulation when null. Each tick applies the feed's next timestamp
+         * batch; once the feed is exhausted prices stay where they are.
+         */
+        public void useReplay(ReplayFeed feed) {
+            if (feed != null && lazy) throw new IllegalStateException("Replay writes every column it reads.");
+            this.replay = feed;
+        }
+
+        /** Back to independent shocks per symbol. */
+        public void clearCorrelation() {
+            shocks = null;
+        }
+
+        private void setShocks(CorrelatedShocks model) {
+            if (model.size() != size) {
+                throw new IllegalArgumentException("Model covers " + model.size() + " symbols, market has " + size + ".");
+            }
+            if (lazy || parallel) throw new IllegalStateException("Correlated shocks need sequential, eager ticking.");
+            shocks = model;
+        }
+
+        /** Brings one column up to the current tick (no-op when already current). */
+        void materialize(int id) {
+            long behind = tickCount - asOf[id];
+            if (behind == 0) return;
+            if (rng == null) rng = new Random();
+            price[id] = stepN(price[id], behind, rng.nextGaussian());
+            asOf[id] = tickCount;
+        }
+
+        private void materializeAll() {
+            if (!lazy) return;
+            for (int i = 0; i < size; i++) materialize(i);
+        }
+
+        static double step(double p, double gaussian) {
+            return Math.max(MIN_PRICE, p * (1.0 + gaussian * TICK_VOL));
+        }
+
+        /** n ticks in one draw: exact step for n == 1, aggregated log-return otherwise. */
+        static double stepN(double p, long n, double gaussian) {
+            if (n == 1) return step(p, gaussian);
+            return Math.max(MIN_PRICE, p * Math.exp(n * LOG_DRIFT + Math.sqrt(n) * TICK_VOL * gaussian));
+        }
+
+        /** advance market one tick */
+        public void tickAll() {
+            advance(1);
+        }
+
+        /**
+         * Fast-forwards n ticks in a single pass. For n > 1 each symbol draws its
+         * aggregated log-return from N(n * LOG_DRIFT, n * TICK_VOL^2) instead of
+         * stepping n times; the 0.01 floor is applied to the end price only.
+         */
+        public void advance(int n) {
+            if (n < 0) throw new IllegalArgumentException("Tick count must not be negative.");
+            if (n == 0) return;
+            // Recreate RNG if deserialized
+            if (rng == null) rng = new Random();
+            if (replay != null) {
+                for (int t = 0; t < n; t++) {
+                    if (!replay.replayTick(price, size)) break;
+                }
+            } else if (lazy) {
+                // columns catch up on read
+            } else if (shocks != null && process != null) {
+                for (int t = 0; t < n; t++) process.step(price, 0, size, shocks.draw(rng), rng);
+            } else if (shocks != null) {
+                double[] z = shocks.draw(rng);
+                for (int i = 0; i < size; i++) price[i] = stepN(price[i], n, z[i]);
+            } else if (parallel) {
+                tickParallel(n);
+            } else {
+                TickKernel.advance(process, price, 0, size, n, rng);
+            }
+            tickCount += n;
+            if (tickListeners != null) {
+                for (TickListener l : tickListeners) l.afterTick(this);
+            }
+        }
+
+        /** Called on the ticking thread after every tickAll/advance. */
+        public synchronized void addTickListener(TickListener listener) {
+            if (tickListeners == null) tickListeners = new CopyOnWriteArrayList<>();
+            tickListeners.add(listener);
+        }
+
+        /** Safe from any thread; a tick already under way may still call it once. */
+        public synchronized void removeTickListener(TickListener listener) {
+            if (tickListeners != null) tickListeners.remove(listener);
+        }
+
+        private void tickParallel(int steps) {
+            if (pool == null) pool = ForkJoinPool.commonPool();
+            int shards = (size + SHARD_SIZE - 1) / SHARD_SIZE;
+            SplittableRandom master = new SplittableRandom(seed ^ (tickCount * 0x9E3779B97F4A7C15L));
+            SplittableRandom[] rngs = new SplittableRandom[shards];
+            for (int k = 0; k < shards; k++) rngs[k] = master.split();
+            pool.invoke(new ShardTick(process, price, size, steps, rngs, 0, shards));
+        }
+
+        /** Ticks shards [lo, hi), forking halves until one shard is left. */
+        private static final class ShardTick extends RecursiveAction {
+            private final PriceProcess process;
+            private final double[] px;
+            private final int size;
+            private final int steps;
+            private final SplittableRandom[] rngs;
+            private final int lo, hi;
+
+            ShardTick(PriceProcess process, double[] px, int size, int steps, SplittableRandom[] rngs, int lo, int hi) {
+                this.process = process;
+                this.px = px; this.size = size; this.steps = steps; this.rngs = rngs; this.lo = lo; this.hi = hi;
+            }
+
+            @Override protected void compute() {
+                if (hi - lo <= 1) {
+                    for (int k = lo; k < hi; k++) {
+                        TickKernel.advance(process, px, k * SHARD_SIZE, Math.min(size, (k + 1) * SHARD_SIZE), steps, rngs[k]);
+                    }
+                    return;
+                }
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ShardTick(process, px, size, steps, rngs, lo, mid),
+                        new ShardTick(process, px, size, steps, rngs, mid, hi));
+            }
+        }
+
+        /** Simulate a new "session" (resets day open) */
+        public void newSession() {
+            materializeAll();
+            System.arraycopy(price, 0, dayOpen, 0, size);
+        }
+    }
+
+    interface TickListener {
+        void afterTick(Market market);
+    }
+
+    /** Immutable symbol-to-ID mapping, rebuilt only when new symbols are listed. */
+    static final class SymbolTable {
+        private final String[] symbols;
+        private final String[] names;
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        SymbolTable(Stock[] byId, int size) {
+            symbols = new String[size];
+            names = new String[size];
+            for (int i = 0; i < size; i++) {
+                symbols[i] = byId[i].getSymbol();
+                names[i] = byId[i].getName();
+                ids.put(symbols[i], i);
+            }
+        }
+    }
+
+    /** Immutable copy of every price at one tick; safe to share across threads. */
+    static final class MarketSnapshot implements PriceSource {
+        final long tick;
+        private final SymbolTable symbols;
+        private final double[] price;
+        private final double[] dayOpen;
+
+        MarketSnapshot(long tick, SymbolTable symbols, double[] price, double[] dayOpen) {
+            this.tick = tick; this.symbols = symbols; this.price = price; this.dayOpen = dayOpen;
+        }
+
+        public int size() { return price.length; }
+
+        @Override public int idOf(String symbol) {
+            Integer id = symbols.ids.get(symbol.toUpperCase(Locale.ROOT));
+            if (id == null) throw new IllegalArgumentException("Unknown symbol: " + symbol);
+            return id;
+        }
+
+        @Override public String symbolOf(int id) { return symbols.symbols[id]; }
+        public String nameOf(int id) { return symbols.names[id]; }
+        @Override public double getPrice(int id) { return price[id]; }
+        public double getDayOpen(int id) { return dayOpen[id]; }
+
+        public double pctChangeFromOpen(int id) {
+            return (price[id] - dayOpen[id]) / dayOpen[id] * 100.0;
+        }
+    }
+
+    /**
+     * Ticks a Market at a fixed rate on its own thread, independent of user
+     * input. The clock thread is the market's single writer: it publishes a
+     * MarketSnapshot after every tick for readers, and any other mutation
+     * (new session, save) is handed to it through call().
+     */
+    static final class MarketClock implements AutoCloseable {
+        private final Market market;
+        private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "market-clock");
+            t.setDaemon(true);
+            return t;
+        });
+        private final AtomicReference<RuntimeException> tickError = new AtomicReference<>();
+
+        MarketClock(Market market, double hz) {
+            if (hz <= 0) throw new IllegalArgumentException("Clock rate must be positive.");
+            if (market.lazy) throw new IllegalStateException("Lazy catch-up would write from reader threads.");
+            this.market = market;
+            market.publish(market.capture());
+            long periodNanos = Math.max(1L, Math.round(1e9 / hz));
+            exec.scheduleAtFixedRate(this::tick, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /** A failure must not escape: scheduleAtFixedRate would cancel the clock and freeze the market silently. */
+        private void tick() {
+            try {
+                market.tickAll();
+                market.publish(market.capture());
+            } catch (RuntimeException ex) {
+                tickError.compareAndSet(null, ex);
+            }
+        }
+
+        /** The first tick failure since the last call, if any; clears it. The clock keeps running. */
+        RuntimeException takeError() { return tickError.getAndSet(null); }
+
+        /** Runs {@code task} on the clock thread between ticks and waits for it. */
+        <T> T call(Callable<T> task) throws Exception {
+            try {
+                return exec.submit(() -> {
+                    T result = task.call();
+                    market.publish(market.capture());
+                    return result;
+                }).get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                throw (cause instanceof Exception) ? (Exception) cause : ex;
+            }
+        }
+
+        @Override public void close() {
+            exec.shutdown();
+            try {
+                exec.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            market.publish(null);
+        }
+    }
+
+    /* ======================= ORDER BOOK ======================= */
+
+    /** Receives every execution on the matching thread; must not block. */
+    interface TradeListener {
+        void onTrade(int symbolId, OrderType takerSide, long takerId, long takerOwner,
+                     long makerId, long makerOwner, long price, int qty);
+    }
+
+    /**
+     * One side of a book. Levels are kept in parallel arrays sorted ascending by
+     * key, where key is the price for bids and -price for asks, so the best
+     * level is always the last one and consuming it is a decrement.
+     */
+    static final class BookSide {
+        long[] key = new long[16];
+        int[] head = new int[16];    // first order slot in FIFO order
+        int[] tail = new int[16];
+        long[] depth = new long[16]; // resting quantity at the level
+        int count;
+
+        int find(long k) { return Arrays.binarySearch(key, 0, count, k); }
+
+        int insert(long k) {
+            int i = -find(k) - 1;
+            if (count == key.length) {
+                key = Arrays.copyOf(key, count * 2);
+                head = Arrays.copyOf(head, count * 2);
+                tail = Arrays.copyOf(tail, count * 2);
+                depth = Arrays.copyOf(depth, count * 2);
+            }
+            int move = count - i;
+            System.arraycopy(key, i, key, i + 1, move);
+            System.arraycopy(head, i, head, i + 1, move);
+            System.arraycopy(tail, i, tail, i + 1, move);
+            System.arraycopy(depth, i, depth, i + 1, move);
+            key[i] = k;
+            head[i] = tail[i] = -1;
+            depth[i] = 0;
+            count++;
+            return i;
+        }
+
+        void remove(int i) {
+            int move = count - i - 1;
+            System.arraycopy(key, i + 1, key, i, move);
+            System.arraycopy(head, i + 1, head, i, move);
+            System.arraycopy(tail, i + 1, tail, i, move);
+            System.arraycopy(depth, i + 1, depth, i, move);
+            count--;
+        }
+    }
+
+    /**
+     * Open-addressing long-to-int hash map with linear probing and
+     * backward-shift deletion, so there are no tombstones and no boxing. Key 0
+     * is reserved as the empty marker.
+     */
+    static final class LongIntMap {
+        private long[] keys;
+        private int[] values;
+        private int mask;
+        private int size;
+
+        LongIntMap(int expected) {
+            int cap = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+            keys = new long[cap];
+            values = new int[cap];
+            mask = cap - 1;
+        }
+
+        int size() { return size; }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        /** Value for {@code key}, or -1 when absent. */
+        int get(long key) {
+            for (int i = slot(key); ; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+                if (keys[i] == 0) return -1;
+            }
+        }
+
+        void put(long key, int value) {
+            if (key == 0) throw new IllegalArgumentException("Key 0 is reserved.");
+            if ((size + 1) * 2 > keys.length) rehash(keys.length * 2);
+            int i = slot(key);
+            while (keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+            if (keys[i] == 0) size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        /** Removes {@code key}; returns its value, or -1 when absent. */
+        int remove(long key) {
+            int i = slot(key);
+            while (keys[i] != key) {
+                if (keys[i] == 0) return -1;
+                i = (i + 1) & mask;
+            }
+            int removed = values[i];
+            // shift later members of the probe run back into the gap
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = slot(keys[j]);
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            size--;
+            return removed;
+        }
+
+        private void rehash(int cap) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[cap];
+            values = new int[cap];
+            mask = cap - 1;
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Sorted trigger keys with an int payload each. Keys ascend, so the next
+     * entry to fire is always the last one: popping crossed entries walks back
+     * from the end and never touches the rest.
+     */
+    static final class TriggerList {
+        long[] key = new long[16];
+        int[] slot = new int[16];
+        int count;
+
+        void insert(long k, int s) {
+            int lo = 0, hi = count;
+            while (lo < hi) {           // before equal keys, so ties pop oldest first
+                int mid = (lo + hi) >>> 1;
+                if (key[mid] < k) lo = mid + 1; else hi = mid;
+            }
+            if (count == key.length) {
+                key = Arrays.copyOf(key, count * 2);
+                slot = Arrays.copyOf(slot, count * 2);
+            }
+            System.arraycopy(key, lo, key, lo + 1, count - lo);
+            System.arraycopy(slot, lo, slot, lo + 1, count - lo);
+            key[lo] = k;
+            slot[lo] = s;
+            count++;
+        }
+
+        /** Moves the payloads of all entries with key >= threshold into out[n..]; returns the new n. */
+        int popAtLeast(long threshold, int[] out, int n) {
+            while (count > 0 && key[count - 1] >= threshold) out[n++] = slot[--count];
+            return n;
+        }
+
+        boolean remove(long k, int s) {
+            int i = Arrays.binarySearch(key, 0, count, k);
+            if (i < 0) return false;
+            while (i > 0 && key[i - 1] == k) i--;
+            for (; i < count && key[i] == k; i++) {
+                if (slot[i] == s) {
+                    System.arraycopy(key, i + 1, key, i, count - i - 1);
+                    System.arraycopy(slot, i + 1, slot, i, count - i - 1);
+                    count--;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Hierarchical timing wheel of order IDs: four levels of 64 slots at a
+     * fixed resolution. An entry sits in the coarsest level that still
+     * separates it from now and drops a level each time its slot comes round,
+     * so scheduling is O(1) and nothing is polled. Entries are intrusive lists
+     * through parallel arrays. Deadlines past the top level's span wait in its
+     * farthest slot and are re-filed when it comes round.
+     */
+    static final class TimingWheel {
+        private static final int BITS = 6, SLOTS = 1 << BITS, LEVELS = 4;
+
+        private final long resolutionMillis;
+        private final int[][] heads = new int[LEVELS][SLOTS];
+        private final int[] filed = new int[LEVELS];   // entries per level, to skip idle stretches
+        private long current;                  // wheel time in resolution units
+        private long[] id = new long[256];
+        private long[] deadline = new long[256];
+        private int[] next = new int[256];
+        private int used;
+        private int freeHead = -1;
+
+        TimingWheel(long startMillis, long resolutionMillis) {
+            this.resolutionMillis = resolutionMillis;
+            this.current = startMillis / resolutionMillis;
+            for (int[] level : heads) Arrays.fill(level, -1);
+        }
+
+        /** Files {@code orderId}; returns false if the deadline has already passed. */
+        boolean schedule(long orderId, long deadlineMillis) {
+            long due = (deadlineMillis + resolutionMillis - 1) / resolutionMillis;
+            if (due <= current) return false;
+            int e = allocate();
+            id[e] = orderId;
+            deadline[e] = due;
+            file(e);
+            return true;
+        }
+
+        /** Advances to {@code nowMillis}, passing each expired order ID to {@code expired}. */
+        void advance(long nowMillis, java.util.function.LongConsumer expired) {
+            long target = nowMillis / resolutionMillis;
+            while (current < target) {
+                int idle = 0;
+                while (idle < LEVELS && filed[idle] == 0) idle++;
+                if (idle == LEVELS) {
+                    current = target;
+                    break;
+                }
+                if (idle > 0) {
+                    // nothing below level idle: jump to just before its next slot boundary
+                    long boundary = (current | ((1L << (BITS * idle)) - 1)) + 1;
+                    if (boundary > target) {
+                        current = target;
+                        break;
+                    }
+                    current = boundary - 1;
+                }
+                current++;
+                int s0 = (int) (current & (SLOTS - 1));
+                if (s0 == 0) cascade(1);
+                int e = heads[0][s0];
+                heads[0][s0] = -1;
+                while (e != -1) {
+                    int n = next[e];
+                    long orderId = id[e];
+                    filed[0]--;
+                    release(e);
+                    expired.accept(orderId);
+                    e = n;
+                }
+            }
+        }
+
+        private void cascade(int level) {
+            if (level >= LEVELS) return;
+            int s = (int) ((current >>> (BITS * level)) & (SLOTS - 1));
+            if (s == 0) cascade(level + 1);
+            int e = heads[level][s];
+            heads[level][s] = -1;
+            while (e != -1) {
+                int n = next[e];
+                filed[level]--;
+                file(e);
+                e = n;
+            }
+        }
+
+        private void file(int e) {
+            long delta = deadline[e] - current;
+            int level = 0;
+            while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) level++;
+            long at = (delta >= (1L << (BITS * LEVELS))) ? current + (((long) SLOTS - 1) << (BITS * level)) : deadline[e];
+            int s = (int) ((at >>> (BITS * level)) & (SLOTS - 1));
+            next[e] = heads[level][s];
+            heads[level][s] = e;
+            filed[level]++;
+        }
+
+        private int allocate() {
+            if (freeHead != -1) {
+                int e = freeHead;
+                freeHead = next[e];
+                return e;
+            }
+            if (used == id.length) {
+                id = Arrays.copyOf(id, used * 2);
+                deadline = Arrays.copyOf(deadline, used * 2);
+                next = Arrays.copyOf(next, used * 2);
+            }
+            return used++;
+        }
+
+        private void release(int e) {
+            next[e] = freeHead;
+            freeHead = e;
+        }
+    }
+
+    /**
+     * Pending stop orders for one symbol. Buy stops fire when the price rises
+     * to the trigger (keyed -trigger), sell stops when it falls to it (keyed
+     * trigger), so in both lists the next to fire is last and a price update
+     * pops exactly the crossed ones. Trailing stops re-price on every new
+     * extreme, so they are kept apart and checked individually.
+     */
+    static final class StopBook {
+        final TriggerList buys = new TriggerList();
+        final TriggerList sells = new TriggerList();
+        int[] trailing = new int[8];
+        int trailingCount;
+        boolean listed;     // in the engine's list of symbols with stops
+
+        int pending() { return buys.count + sells.count + trailingCount; }
+    }
+
+    static final class OrderBook {
+        final BookSide bids = new BookSide();
+        final BookSide asks = new BookSide();
+        StopBook stops;
+    }
+
+    /**
+     * Price-time priority matching over per-symbol limit order books. Orders
+     * live in a pool of parallel primitive arrays and each price level is an
+     * intrusive FIFO list threaded through that pool, so adding, matching and
+     * cancelling allocate nothing once the pool has grown. An order-ID index
+     * maps each resting order straight to its slot, so cancel and amend do a
+     * hash lookup and an O(1) unlink instead of searching the book. Prices are
+     * micro-units (see Money). Trades set the symbol's market price to the
+     * last execution. Not thread-safe: drive it from the market's writer.
+     *
+     * Conditional orders (stop, stop-limit, trailing stop) wait in a per-symbol
+     * StopBook and enter the book as market or limit orders under their own ID
+     * once triggered; they are checked after every market tick and every
+     * trade. GTD expiries sit in a TimingWheel advanced on each tick.
+     */
+    static final class MatchingEngine implements TickListener {
+        private final Market market;
+        private final TradeListener listener;
+        private OrderBook[] books = new OrderBook[16];
+        private long nextOrderId = 1;
+
+        // order pool, indexed by slot; orderId == 0 marks a free slot
+        private long[] orderId = new long[1024];
+        private long[] owner = new long[1024];
+        private long[] price = new long[1024];
+        private int[] qty = new int[1024];
+        private int[] symbol = new int[1024];
+        private boolean[] buy = new boolean[1024];
+        private int[] next = new int[1024];
+        private int[] prev = new int[1024];
+        private final LongIntMap index = new LongIntMap(1024);   // resting order ID -> slot
+        private int used;            // slots [0, used) have been handed out
+        private int freeHead = -1;   // free list threaded through next[]
+        private int live;
+
+        // stop pool, same layout; stopLimit == 0 means a market order on trigger
+        private long[] stopId = new long[64];
+        private long[] stopOwner = new long[64];
+        private long[] stopTrigger = new long[64];
+        private long[] stopLimit = new long[64];
+        private long[] stopTrail = new long[64];  // > 0 for trailing stops
+        private int[] stopQty = new int[64];
+        private int[] stopSymbol = new int[64];
+        private boolean[] stopBuy = new boolean[64];
+        private int[] stopNext = new int[64];
+        private final LongIntMap stopIndex = new LongIntMap(64);
+        private int stopUsed;
+        private int stopFree = -1;
+        private int[] fired = new int[64];
+        private int[] stopped = new int[16];     // symbols whose StopBook is listed; ticks visit only these
+        private int stoppedCount;
+        private boolean triggering;
+        private boolean recheck;
+
+        private TimingWheel expiries;
+        private final java.util.function.LongConsumer expire = this::cancel;
+
+        /** Also registers for the market's ticks, to run stops and expiries. */
+        MatchingEngine(Market market, TradeListener listener) {
+            this.market = market;
+            this.listener = listener;
+            market.addTickListener(this);
+        }
+
+        /** Limit order: matches what it crosses, rests the remainder. Returns the order ID. */
+        public long submitLimit(long owner, int symbolId, OrderType side, long limitPrice, int qty) {
+            return submitLimit(owner, symbolId, side, limitPrice, qty, TimeInForce.GTC, 0L);
+        }
+
+        /**
+         * Limit order with a time in force. GTD orders rest until
+         * {@code expireAtMillis} (epoch millis); IOC drops any unfilled
+         * remainder; FOK trades only if the whole quantity fills now and
+         * otherwise returns 0 without touching the book.
+         */
+        public long submitLimit(long owner, int symbolId, OrderType side, long limitPrice, int qty,
+                                TimeInForce tif, long expireAtMillis) {
+            if (qty <= 0) throw new IllegalArgumentException("Quantity must be positive.");
+            if (limitPrice <= 0) throw new IllegalArgumentException("Invalid price.");
+            if (tif == TimeInForce.FOK && fillable(symbolId, side, limitPrice) < qty) return 0;
+            long id = nextOrderId++;
+            int left = match(symbolId, side, limitPrice, qty, id, owner);
+            if (left > 0 && (tif == TimeInForce.GTC || tif == TimeInForce.GTD)) {
+                rest(symbolId, side, limitPrice, left, id, owner);
+                if (tif == TimeInForce.GTD) {
+                    if (expiries == null) expiries = new TimingWheel(System.currentTimeMillis(), 1L);
+                    if (!expiries.schedule(id, expireAtMillis)) cancel(id);
+                }
+            }
+            return id;
+        }
+
+        /** Stop: becomes a market order once the price reaches {@code trigger}. */
+        public long submitStop(long owner, int symbolId, OrderType side, long trigger, int qty) {
+            return addStop(owner, symbolId, side, trigger, 0L, 0L, qty);
+        }
+
+        /** Stop-limit: becomes a GTC limit order at {@code limitPrice} once triggered. */
+        public long submitStopLimit(long owner, int symbolId, OrderType side, long trigger, long limitPrice, int qty) {
+            if (limitPrice <= 0) throw new IllegalArgumentException("Invalid price.");
+            return addStop(owner, symbolId, side, trigger, limitPrice, 0L, qty);
+        }
+
+        /**
+         * Trailing stop: the trigger follows the best price seen by
+         * {@code trail} micro-units (below it for sells, above for buys) and a
+         * market order is sent when the price comes back to it.
+         */
+        public long submitTrailingStop(long owner, int symbolId, OrderType side, long trail, int qty) {
+            if (trail <= 0) throw new IllegalArgumentException("Trail must be positive.");
+            long px = Money.of(market.getPrice(symbolId));
+            long trigger = (side == OrderType.BUY) ? px + trail : Math.max(1L, px - trail);
+            return addStop(owner, symbolId, side, trigger, 0L, trail, qty);
+        }
+
+        public int pendingStops() { return stopIndex.size(); }
+
+        /** Runs due GTD expiries and any stops crossed by this tick's prices, visiting only symbols with stops. */
+        @Override public void afterTick(Market m) {
+            expireOrders(System.currentTimeMillis());
+            for (int i = 0; i < stoppedCount; ) {
+                int sym = stopped[i];
+                StopBook sb = books[sym].stops;
+                checkStops(sym);
+                if (sb.pending() == 0) {
+                    sb.listed = false;
+                    stopped[i] = stopped[--stoppedCount];
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        /** Cancels every GTD order whose deadline is at or before {@code nowMillis}. */
+        public void expireOrders(long nowMillis) {
+            if (expiries != null) expiries.advance(nowMillis, expire);
+        }
+
+        /** Market order: sweeps the opposite side; any unfilled remainder is dropped. */
+        public long submitMarket(long owner, int symbolId, OrderType side, int qty) {
+            if (qty <= 0) throw new IllegalArgumentException("Quantity must be positive.");
+            long id = nextOrderId++;
+            match(symbolId, side, side == OrderType.BUY ? Long.MAX_VALUE : 0L, qty, id, owner);
+            return id;
+        }
+
+        /** Removes a resting or pending stop order; false if it is unknown or already done. */
+        public boolean cancel(long id) {
+            int slot = (id > 0) ? index.get(id) : -1;
+            if (slot == -1) return cancelStop(id);
+            unlink(slot);
+            release(slot);
+            return true;
+        }
+
+        /**
+         * Lowers a resting order's quantity in place, keeping its time priority.
+         * False if the order is not resting or {@code newQty} is not lower.
+         */
+        public boolean reduce(long id, int newQty) {
+            int slot = (id > 0) ? index.get(id) : -1;
+            if (slot == -1 || newQty >= qty[slot]) return false;
+            if (newQty <= 0) return cancel(id);
+            BookSide bs = buy[slot] ? books[symbol[slot]].bids : books[symbol[slot]].asks;
+            bs.depth[bs.find(buy[slot] ? price[slot] : -price[slot])] -= qty[slot] - newQty;
+            qty[slot] = newQty;
+            return true;
+        }
+
+        /**
+         * Replaces price and quantity. A pure quantity reduction keeps priority;
+         * anything else re-enters the book under the same ID at the back of the
+         * queue and may trade immediately if the new price crosses.
+         */
+        public boolean amend(long id, long newPrice, int newQty) {
+            int slot = (id > 0) ? index.get(id) : -1;
+            if (slot == -1) return false;
+            if (newQty <= 0) throw new IllegalArgumentException("Quantity must be positive.");
+            if (newPrice <= 0) throw new IllegalArgumentException("Invalid price.");
+            if (newPrice == price[slot] && newQty < qty[slot]) return reduce(id, newQty);
+            int symbolId = symbol[slot];
+            OrderType side = buy[slot] ? OrderType.BUY : OrderType.SELL;
+            long who = owner[slot];
+            unlink(slot);
+            release(slot);
+            int left = match(symbolId, side, newPrice, newQty, id, who);
+            if (left > 0) rest(symbolId, side, newPrice, left, id, who);
+            return true;
+        }
+
+        public int liveOrders() { return live; }
+
+        /** Best bid in micro-units, or 0 when there is none. */
+        public long bestBid(int symbolId) {
+            BookSide b = book(symbolId).bids;
+            return (b.count == 0) ? 0 : b.key[b.count - 1];
+        }
+
+        /** Best ask in micro-units, or 0 when there is none. */
+        public long bestAsk(int symbolId) {
+            BookSide a = book(symbolId).asks;
+            return (a.count == 0) ? 0 : -a.key[a.count - 1];
+        }
+
+        private OrderBook book(int symbolId) {
+            if (symbolId < 0 || symbolId >= market.size()) {
+                throw new IllegalArgumentException("Unknown symbol id: " + symbolId);
+            }
+            if (symbolId >= books.length) books = Arrays.copyOf(books, Math.max(symbolId + 1, books.length * 2));
+            OrderBook b = books[symbolId];
+            if (b == null) b = books[symbolId] = new OrderBook();
+            return b;
+        }
+
+        /**
+         * Fills against the best opposite order, one maker at a time. Each
+         * fill is fully booked (quantity, depth, emptied orders and levels)
+         * before the listener hears of it, so a listener that throws leaves a
+         * consistent book: fills already made stand and the taker's remainder
+         * is dropped.
+         */
+        private int match(int symbolId, OrderType side, long limit, int want, long takerId, long takerOwner) {
+            boolean isBuy = side == OrderType.BUY;
+            BookSide opp = isBuy ? book(symbolId).asks : book(symbolId).bids;
+            long lastPx = 0;
+            try {
+                while (want > 0 && opp.count > 0) {
+                    int lvl = opp.count - 1;
+                    long px = isBuy ? -opp.key[lvl] : opp.key[lvl];
+                    if (isBuy ? px > limit : px < limit) break;
+                    int slot = opp.head[lvl];
+                    int fill = Math.min(want, qty[slot]);
+                    long makerId = orderId[slot], makerOwner = owner[slot];
+                    want -= fill;
+                    qty[slot] -= fill;
+                    opp.depth[lvl] -= fill;
+                    if (qty[slot] == 0) {
+                        int nxt = next[slot];
+                        opp.head[lvl] = nxt;
+                        if (nxt == -1) {
+                            opp.tail[lvl] = -1;
+                            opp.count--;
+                        } else {
+                            prev[nxt] = -1;
+                        }
+                        release(slot);
+                    }
+                    lastPx = px;
+                    listener.onTrade(symbolId, side, takerId, takerOwner, makerId, makerOwner, px, fill);
+                }
+            } finally {
+                if (lastPx != 0) market.setLastTrade(symbolId, Money.toDouble(lastPx));
+            }
+            if (lastPx != 0) checkStops(symbolId);
+            return want;
+        }
+
+        /** Opposite-side quantity available at or better than {@code limit}. */
+        private long fillable(int symbolId, OrderType side, long limit) {
+            boolean isBuy = side == OrderType.BUY;
+            BookSide opp = isBuy ? book(symbolId).asks : book(symbolId).bids;
+            long total = 0;
+            for (int lvl = opp.count - 1; lvl >= 0; lvl--) {
+                long px = isBuy ? -opp.key[lvl] : opp.key[lvl];
+                if (isBuy ? px > limit : px < limit) break;
+                total += opp.depth[lvl];
+            }
+            return total;
+        }
+
+        private long addStop(long who, int symbolId, OrderType side, long trigger, long limit, long trail, int q) {
+            if (q <= 0) throw new IllegalArgumentException("Quantity must be positive.");
+            if (trigger <= 0) throw new IllegalArgumentException("Invalid trigger.");
+            OrderBook b = book(symbolId);
+            if (b.stops == null) b.stops = new StopBook();
+            long id = nextOrderId++;
+            int s = allocateStop();
+            stopId[s] = id;
+            stopOwner[s] = who;
+            stopTrigger[s] = trigger;
+            stopLimit[s] = limit;
+            stopTrail[s] = trail;
+            stopQty[s] = q;
+            stopSymbol[s] = symbolId;
+            stopBuy[s] = side == OrderType.BUY;
+            stopIndex.put(id, s);
+            StopBook sb = b.stops;
+            if (!sb.listed) {
+                if (stoppedCount == stopped.length) stopped = Arrays.copyOf(stopped, stoppedCount * 2);
+                stopped[stoppedCount++] = symbolId;
+                sb.listed = true;
+            }
+            if (trail > 0) {
+                if (sb.trailingCount == sb.trailing.length) sb.trailing = Arrays.copyOf(sb.trailing, sb.trailingCount * 2);
+                sb.trailing[sb.trailingCount++] = s;
+            } else if (stopBuy[s]) {
+                sb.buys.insert(-trigger, s);
+            } else {
+                sb.sells.insert(trigger, s);
+            }
+            checkStops(symbolId);
+            return id;
+        }
+
+        private boolean cancelStop(long id) {
+            int s = (id > 0) ? stopIndex.get(id) : -1;
+            if (s == -1) return false;
+            StopBook sb = books[stopSymbol[s]].stops;
+            if (stopTrail[s] > 0) {
+                for (int i = 0; i < sb.trailingCount; i++) {
+                    if (sb.trailing[i] == s) {
+                        sb.trailing[i] = sb.trailing[--sb.trailingCount];
+                        break;
+                    }
+                }
+            } else if (stopBuy[s]) {
+                sb.buys.remove(-stopTrigger[s], s);
+            } else {
+                sb.sells.remove(stopTrigger[s], s);
+            }
+            releaseStop(s);
+            return true;
+        }
+
+        /**
+         * Fires every stop on {@code symbolId} crossed by the current price. Fills
+         * from fired stops move the price again, so this repeats until quiet;
+         * re-entrant calls from those fills just request another pass.
+         */
+        private void checkStops(int symbolId) {
+            StopBook sb = (symbolId < books.length && books[symbolId] != null) ? books[symbolId].stops : null;
+            if (sb == null || sb.pending() == 0) return;
+            if (triggering) {
+                recheck = true;
+                return;
+            }
+            triggering = true;
+            try {
+                do {
+                    recheck = false;
+                    long px = Money.of(market.getPrice(symbolId));
+                    if (fired.length < sb.pending()) fired = new int[Math.max(sb.pending(), fired.length * 2)];
+                    int n = sb.buys.popAtLeast(-px, fired, 0);
+                    n = sb.sells.popAtLeast(px, fired, n);
+                    for (int i = sb.trailingCount - 1; i >= 0; i--) {
+                        int s = sb.trailing[i];
+                        long trig = stopBuy[s] ? Math.min(stopTrigger[s], px + stopTrail[s])
+                                               : Math.max(stopTrigger[s], px - stopTrail[s]);
+                        stopTrigger[s] = trig;
+                        if (stopBuy[s] ? px >= trig : px <= trig) {
+                            fired[n++] = s;
+                            sb.trailing[i] = sb.trailing[--sb.trailingCount];
+                        }
+                    }
+                    for (int i = 0; i < n; i++) fire(fired[i]);
+                } while (recheck);
+            } finally {
+                triggering = false;
+            }
+        }
+
+        private void fire(int s) {
+            long id = stopId[s], who = stopOwner[s], limit = stopLimit[s];
+            int symbolId = stopSymbol[s], q = stopQty[s];
+            OrderType side = stopBuy[s] ? OrderType.BUY : OrderType.SELL;
+            releaseStop(s);
+            int left = match(symbolId, side, limit > 0 ? limit : (side == OrderType.BUY ? Long.MAX_VALUE : 0L), q, id, who);
+            if (left > 0 && limit > 0) rest(symbolId, side, limit, left, id, who);
+        }
+
+        private int allocateStop() {
+            if (stopFree != -1) {
+                int s = stopFree;
+                stopFree = stopNext[s];
+                return s;
+            }
+            if (stopUsed == stopId.length) {
+                int cap = stopUsed * 2;
+                stopId = Arrays.copyOf(stopId, cap);
+                stopOwner = Arrays.copyOf(stopOwner, cap);
+                stopTrigger = Arrays.copyOf(stopTrigger, cap);
+                stopLimit = Arrays.copyOf(stopLimit, cap);
+                stopTrail = Arrays.copyOf(stopTrail, cap);
+                stopQty = Arrays.copyOf(stopQty, cap);
+                stopSymbol = Arrays.copyOf(stopSymbol, cap);
+                stopBuy = Arrays.copyOf(stopBuy, cap);
+                stopNext = Arrays.copyOf(stopNext, cap);
+            }
+            return stopUsed++;
+        }
+
+        private void releaseStop(int s) {
+            stopIndex.remove(stopId[s]);
+            stopId[s] = 0;
+            stopNext[s] = stopFree;
+            stopFree = s;
+        }
+
+        private int rest(int symbolId, OrderType side, long px, int q, long id, long who) {
+            boolean isBuy = side == OrderType.BUY;
+            BookSide bs = isBuy ? book(symbolId).bids : book(symbolId).asks;
+            long k = isBuy ? px : -px;
+            int lvl = bs.find(k);
+            if (lvl < 0) lvl = bs.insert(k);
+            int slot = allocate();
+            orderId[slot] = id;
+            owner[slot] = who;
+            price[slot] = px;
+            qty[slot] = q;
+            symbol[slot] = symbolId;
+            buy[slot] = isBuy;
+            next[slot] = -1;
+            prev[slot] = bs.tail[lvl];
+            if (bs.tail[lvl] == -1) bs.head[lvl] = slot;
+            else next[bs.tail[lvl]] = slot;
+            bs.tail[lvl] = slot;
+            bs.depth[lvl] += q;
+            index.put(id, slot);
+            return slot;
+        }
+
+        /** Detaches a resting order from its level, dropping the level if it empties. */
+        private void unlink(int slot) {
+            BookSide bs = buy[slot] ? books[symbol[slot]].bids : books[symbol[slot]].asks;
+            int lvl = bs.find(buy[slot] ? price[slot] : -price[slot]);
+            int p = prev[slot], n = next[slot];
+            if (p == -1) bs.head[lvl] = n; else next[p] = n;
+            if (n == -1) bs.tail[lvl] = p; else prev[n] = p;
+            bs.depth[lvl] -= qty[slot];
+            if (bs.head[lvl] == -1) bs.remove(lvl);
+        }
+
+        private int allocate() {
+            live++;
+            if (freeHead != -1) {
+                int slot = freeHead;
+                freeHead = next[slot];
+                return slot;
+            }
+            if (used == orderId.length) {
+                int cap = used * 2;
+                orderId = Arrays.copyOf(orderId, cap);
+                owner = Arrays.copyOf(owner, cap);
+                price = Arrays.copyOf(price, cap);
+                qty = Arrays.copyOf(qty, cap);
+                symbol = Arrays.copyOf(symbol, cap);
+                buy = Arrays.copyOf(buy, cap);
+                next = Arrays.copyOf(next, cap);
+                prev = Arrays.copyOf(prev, cap);
+            }
+            return used++;
+        }
+
+        private void release(int slot) {
+            live--;
+            index.remove(orderId[slot]);
+            orderId[slot] = 0;
+            next[slot] = freeHead;
+            freeHead = slot;
+        }
+    }
+
+    /* ======================= PRICE ALERTS ======================= */
+
+    /** One-shot alert: fires once when the price crosses {@code level}. */
+    static final class PriceAlert {
+        final long id;
+        final int symbolId;
+        final String symbol;
+        final double level;
+        final boolean above;     // fires on a rise to level, else on a fall to it
+
+        PriceAlert(long id, int symbolId, String symbol, double level, boolean above) {
+            this.id = id; this.symbolId = symbolId; this.symbol = symbol; this.level = level; this.above = above;
+        }
+
+        @Override public String toString() {
+            return String.format(Locale.US, "%s crossed %s %.2f", symbol, above ? "above" : "below", level);
+        }
+    }
+
+    /**
+     * Price alerts indexed per symbol. Alerts above the price sit in a min-heap
+     * on level and alerts below it in a min-heap on -level, so each tick pops
+     * only the alerts the new price has crossed: O(fired * log n) with nothing
+     * scanned, and registering or cancelling is O(log n). Heaps hold alert
+     * slots and track each slot's position so cancel can sift it out. Fired
+     * alerts go to a lock-free queue that any thread may drain.
+     *
+     * Mutations run on the market's ticking thread (the clock thread when a
+     * MarketClock is running).
+     */
+    static final class AlertBook implements TickListener, AutoCloseable {
+        private final Market market;
+        private final ConcurrentLinkedQueue<PriceAlert> fired = new ConcurrentLinkedQueue<>();
+        private final LongIntMap byId = new LongIntMap(1024);
+        private PriceAlert[] alerts = new PriceAlert[1024];
+        private int[] heapPos = new int[1024];    // slot -> index in its heap
+        private int[] nextFree = new int[1024];
+        private int used;
+        private int freeHead = -1;
+        private long nextId = 1;
+        private AlertHeap[] above = new AlertHeap[16];
+        private AlertHeap[] below = new AlertHeap[16];
+        private boolean[] watched = new boolean[16];     // symbol -> listed in watching
+        private int[] watching = new int[16];            // symbols with pending alerts; ticks visit only these
+        private int watchingCount;
+
+        /** Also registers for the market's ticks. */
+        AlertBook(Market market) {
+            this.market = market;
+            market.addTickListener(this);
+        }
+
+        /** Stops listening to the market's ticks. */
+        @Override public void close() { market.removeTickListener(this); }
+
+        /** Alerts when the price crosses {@code level} from where it is now; returns the alert ID. */
+        public long register(int symbolId, double level) {
+            if (level <= 0) throw new IllegalArgumentException("Invalid price.");
+            double now = market.getPrice(symbolId);
+            boolean up = level > now;
+            long id = nextId++;
+            int slot = allocate();
+            alerts[slot] = new PriceAlert(id, symbolId, market.symbolOf(symbolId), level, up);
+            byId.put(id, slot);
+            if (symbolId >= above.length) {
+                above = Arrays.copyOf(above, Math.max(symbolId + 1, above.length * 2));
+                below = Arrays.copyOf(below, above.length);
+                watched = Arrays.copyOf(watched, above.length);
+            }
+            if (!watched[symbolId]) {
+                if (watchingCount == watching.length) watching = Arrays.copyOf(watching, watchingCount * 2);
+                watching[watchingCount++] = symbolId;
+                watched[symbolId] = true;
+            }
+            AlertHeap[] side = up ? above : below;
+            if (side[symbolId] == null) side[symbolId] = new AlertHeap();
+            long micros = Money.of(level);
+            side[symbolId].push(up ? micros : -micros, slot);
+            return id;
+        }
+
+        public boolean cancel(long id) {
+            int slot = (id > 0) ? byId.get(id) : -1;
+            if (slot == -1) return false;
+            PriceAlert a = alerts[slot];
+            (a.above ? above : below)[a.symbolId].removeAt(heapPos[slot]);
+            release(slot);
+            return true;
+        }
+
+        public int registered() { return byId.size(); }
+
+        /** Next fired alert, or null; safe from any thread. */
+        public PriceAlert poll() { return fired.poll(); }
+
+        /** Visits only symbols with pending alerts; one left with none (fired or cancelled) drops out. */
+        @Override public void afterTick(Market m) {
+            for (int i = 0; i < watchingCount; ) {
+                int sym = watching[i];
+                AlertHeap up = above[sym], down = below[sym];
+                long px = Money.of(m.getPrice(sym));
+                if (up != null) drain(up, px);
+                if (down != null) drain(down, -px);
+                if ((up == null || up.size == 0) && (down == null || down.size == 0)) {
+                    watched[sym] = false;
+                    watching[i] = watching[--watchingCount];
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        private void drain(AlertHeap heap, long threshold) {
+            while (heap.size > 0 && heap.key[0] <= threshold) {
+                int slot = heap.item[0];
+                heap.removeAt(0);
+                fired.add(alerts[slot]);
+                release(slot);
+            }
+        }
+
+        private int allocate() {
+            if (freeHead != -1) {
+                int slot = freeHead;
+                freeHead = nextFree[slot];
+                return slot;
+            }
+            if (used == alerts.length) {
+                alerts = Arrays.copyOf(alerts, used * 2);
+                heapPos = Arrays.copyOf(heapPos, used * 2);
+                nextFree = Arrays.copyOf(nextFree, used * 2);
+            }
+            return used++;
+        }
+
+        private void release(int slot) {
+            byId.remove(alerts[slot].id);
+            alerts[slot] = null;
+            nextFree[slot] = freeHead;
+            freeHead = slot;
+        }
+
+        /** Binary min-heap of (key, slot) that keeps heapPos current. */
+        private final class AlertHeap {
+            long[] key = new long[16];
+            int[] item = new int[16];
+            int size;
+
+            void push(long k, int slot) {
+                if (size == key.length) {
+                    key = Arrays.copyOf(key, size * 2);
+                    item = Arrays.copyOf(item, size * 2);
+                }
+                place(size++, k, slot);
+                siftUp(size - 1);
+            }
+
+            void removeAt(int i) {
+                size--;
+                if (i == size) return;
+                place(i, key[size], item[size]);
+                siftDown(i);
+                siftUp(i);
+            }
+
+            private void siftUp(int i) {
+                long k = key[i];
+                int s = item[i];
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (key[parent] <= k) break;
+                    place(i, key[parent], item[parent]);
+                    i = parent;
+                }
+                place(i, k, s);
+            }
+
+            private void siftDown(int i) {
+                long k = key[i];
+                int s = item[i];
+                int half = size >>> 1;
+                while (i < half) {
+                    int c = 2 * i + 1;
+                    if (c + 1 < size && key[c + 1] < key[c]) c++;
+                    if (k <= key[c]) break;
+                    place(i, key[c], item[c]);
+                    i = c;
+                }
+                place(i, k, s);
+            }
+
+            private void place(int i, long k, int slot) {
+                key[i] = k;
+                item[i] = slot;
+                heapPos[slot] = i;
+            }
+        }
+    }
+
+    /* ======================= VALUATION ======================= */
+
+    /**
+     * Keeps the total value of tracked portfolios current instead of
+     * recomputing it on every read. A reverse index maps each symbol to the
+     * holdings in it; after a tick only symbols somebody holds are visited,
+     * and each price move adds shares * delta to the owners' running totals.
+     * Fills adjust the owner's total as they are booked. Values are exact in
+     * micro-units and match totalValueMicros at the prices of the last tick
+     * (a last-trade print is picked up on the next tick). Single-threaded:
+     * ticks and fills must both run on the market's writer.
+     */
+    static final class ValuationIndex implements TickListener, AutoCloseable {
+        private final Market market;
+        private long[] mark = new long[16];                 // symbol -> price last applied, micro-units
+        private Holding[][] holders = new Holding[16][];    // symbol -> holdings in it
+        private int[][] owners = new int[16][];             // symbol -> slot of each holding's portfolio
+        private int[] holderCount = new int[16];
+        private int[] held = new int[16];                   // symbols with at least one holder
+        private int heldCount;
+        private long[] value = new long[16];                // portfolio slot -> total value, micro-units
+        private int tracked;
+
+        /** Also registers for the market's ticks. */
+        ValuationIndex(Market market) {
+            this.market = market;
+            market.addTickListener(this);
+        }
+
+        /** Stops listening to the market's ticks; tracked totals go stale. */
+        @Override public void close() { market.removeTickListener(this); }
+
+        /** Starts maintaining {@code p}'s total value; O(holdings) once. */
+        public void track(Portfolio p) {
+            if (p.valuation != null) throw new IllegalStateException("Portfolio is already tracked.");
+            if (tracked == value.length) value = Arrays.copyOf(value, tracked * 2);
+            int slot = tracked++;
+            long total = p.getCashMicros();
+            for (Holding h : p.getHoldings().values()) {
+                index(slot, h);
+                total = Money.add(total, h.marketValueMicros(mark[h.symbolId]));
+            }
+            value[slot] = total;
+            p.valuation = this;
+            p.valuationSlot = slot;
+        }
+
+        /** O(1) total value of a tracked portfolio. */
+        public long totalValueMicros(Portfolio p) {
+            if (p.valuation != this) throw new IllegalArgumentException("Portfolio is not tracked here.");
+            return value[p.valuationSlot];
+        }
+
+        long valueOf(int slot) { return value[slot]; }
+
+        @Override public void afterTick(Market m) {
+            for (int i = 0; i < heldCount; i++) {
+                int s = held[i];
+                long now = Money.of(m.getPrice(s));
+                long delta = now - mark[s];
+                if (delta == 0) continue;
+                mark[s] = now;
+                Holding[] hs = holders[s];
+                int[] os = owners[s];
+                for (int k = 0, n = holderCount[s]; k < n; k++) {
+                    value[os[k]] = Money.add(value[os[k]], Money.times(delta, hs[k].shares));
+                }
+            }
+        }
+
+        void onFill(int slot, Holding h, OrderType side, int shares, long amount) {
+            if (!h.valued) index(slot, h);
+            long position = Money.times(mark[h.symbolId], shares);
+            value[slot] = (side == OrderType.BUY)
+                    ? Money.add(value[slot], Money.sub(position, amount))
+                    : Money.add(value[slot], Money.sub(amount, position));
+        }
+
+        /** Adds {@code h} to its symbol's holders, marking the symbol on first use. */
+        private void index(int slot, Holding h) {
+            int s = h.symbolId;
+            if (s >= holders.length) {
+                int cap = Math.max(s + 1, holders.length * 2);
+                mark = Arrays.copyOf(mark, cap);
+                holders = Arrays.copyOf(holders, cap);
+                owners = Arrays.copyOf(owners, cap);
+                holderCount = Arrays.copyOf(holderCount, cap);
+            }
+            int n = holderCount[s];
+            if (n == 0) {
+                if (holders[s] == null) {
+                    holders[s] = new Holding[4];
+                    owners[s] = new int[4];
+                }
+                if (heldCount == held.length) held = Arrays.copyOf(held, heldCount * 2);
+                held[heldCount++] = s;
+                mark[s] = Money.of(market.getPrice(s));
+            } else if (n == holders[s].length) {
+                holders[s] = Arrays.copyOf(holders[s], n * 2);
+                owners[s] = Arrays.copyOf(owners[s], n * 2);
+            }
+            holders[s][n] = h;
+            owners[s][n] = slot;
+            holderCount[s] = n + 1;
+            h.valued = true;
+        }
+    }
+
+    /* ======================= PRICE PROCESSES ======================= */
+
+    /**
+     * A per-tick price model. State lives in primitive arrays indexed by symbol
+     * ID, and implementations must not allocate in step(), which runs once per
+     * batch of symbols on every tick (possibly from several shards at once,
+     * each on a disjoint range).
+     */
+    interface PriceProcess extends Serializable {
+        /** Symbol {@code id} was listed (or the process attached) at {@code price}. */
+        void onListed(int id, double price);
+
+        /**
+         * Advances px[from, to) by one tick. {@code z[i - from]} is the unit
+         * gaussian shock for symbol i; {@code rng} may be used for extra draws.
+         */
+        void step(double[] px, int from, int to, double[] z, RandomGenerator rng);
+    }
+
+    /** Grows a per-symbol state column so that {@code id} fits. */
+    static double[] ensureColumn(double[] col, int id) {
+        return (id < col.length) ? col : Arrays.copyOf(col, Math.max(id + 1, col.length * 2));
+    }
+
+    /**
+     * GARCH(1,1) volatility clustering: r = sigma * z, and the next variance is
+     * omega + alpha * r^2 + beta * sigma^2 per symbol.
+     */
+    static final class GarchProcess implements PriceProcess {
+        private final double omega, alpha, beta;
+        private double[] variance = new double[16];
+
+        GarchProcess(double omega, double alpha, double beta) {
+            if (alpha < 0 || beta < 0 || alpha + beta >= 1) throw new IllegalArgumentException("Need alpha + beta < 1.");
+            this.omega = omega; this.alpha = alpha; this.beta = beta;
+        }
+
+        /** Long-run per-tick volatility equal to the built-in walk's 0.5%. */
+        static GarchProcess standard() {
+            double alpha = 0.05, beta = 0.90;
+            return new GarchProcess(Market.TICK_VOL * Market.TICK_VOL * (1 - alpha - beta), alpha, beta);
+        }
+
+        @Override public void onListed(int id, double price) {
+            variance = ensureColumn(variance, id);
+            variance[id] = omega / (1 - alpha - beta);
+        }
+
+        @Override public void step(double[] px, int from, int to, double[] z, RandomGenerator rng) {
+            double[] v = variance;
+            for (int i = from; i < to; i++) {
+                double r = Math.sqrt(v[i]) * z[i - from];
+                px[i] = Math.max(Market.MIN_PRICE, px[i] * (1.0 + r));
+                v[i] = omega + alpha * r * r + beta * v[i];
+            }
+        }
+    }
+
+    /**
+     * Merton jump-diffusion: a lognormal diffusion plus Poisson(lambda) jumps
+     * with N(jumpMean, jumpVol^2) log sizes, drift-compensated so the expected
+     * price is flat.
+     */
+    static final class JumpDiffusionProcess implements PriceProcess {
+        private final double vol, lambda, jumpMean, jumpVol;
+        private final double drift;
+        private final double noJump;     // exp(-lambda), for Knuth's Poisson draw
+
+        JumpDiffusionProcess(double vol, double lambda, double jumpMean, double jumpVol) {
+            this.vol = vol; this.lambda = lambda; this.jumpMean = jumpMean; this.jumpVol = jumpVol;
+            double kappa = Math.exp(jumpMean + 0.5 * jumpVol * jumpVol) - 1.0;
+            this.drift = -0.5 * vol * vol - lambda * kappa;
+            this.noJump = Math.exp(-lambda);
+        }
+
+        /** 0.5% diffusion with a roughly one-in-a-thousand-ticks 5% jump. */
+        static JumpDiffusionProcess standard() {
+            return new JumpDiffusionProcess(Market.TICK_VOL, 0.001, -0.01, 0.05);
+        }
+
+        @Override public void onListed(int id, double price) { }
+
+        @Override public void step(double[] px, int from, int to, double[] z, RandomGenerator rng) {
+            for (int i = from; i < to; i++) {
+                double logRet = drift + vol * z[i - from];
+                double u = rng.nextDouble();
+                while (u > noJump) {
+                    logRet += jumpMean + jumpVol * rng.nextGaussian();
+                    u *= rng.nextDouble();
+                }
+                px[i] = Math.max(Market.MIN_PRICE, px[i] * Math.exp(logRet));
+            }
+        }
+    }
+
+    /**
+     * Ornstein-Uhlenbeck on log price: x += theta * (mean - x) + vol * z, with
+     * each symbol reverting to the log of its listing price.
+     */
+    static final class OrnsteinUhlenbeckProcess implements PriceProcess {
+        private final double theta, vol;
+        private double[] logMean = new double[16];
+
+        OrnsteinUhlenbeckProcess(double theta, double vol) {
+            this.theta = theta; this.vol = vol;
+        }
+
+        static OrnsteinUhlenbeckProcess standard() {
+            return new OrnsteinUhlenbeckProcess(0.01, Market.TICK_VOL);
+        }
+
+        @Override public void onListed(int id, double price) {
+            logMean = ensureColumn(logMean, id);
+            logMean[id] = Math.log(price);
+        }
+
+        @Override public void step(double[] px, int from, int to, double[] z, RandomGenerator rng) {
+            double[] m = logMean;
+            for (int i = from; i < to; i++) {
+                double x = Math.log(px[i]);
+                x += theta * (m[i] - x) + vol * z[i - from];
+                px[i] = Math.max(Market.MIN_PRICE, Math.exp(x));
+            }
+        }
+    }
+
+    /**
+     * Memory-mapped replay of a recorded tick file. The file is a flat array of
+     * little-endian 20-byte records: int symbol ID, long epoch-millis timestamp,
+     * double price, sorted by timestamp. Records are read with absolute gets
+     * straight off the mapping, so replay creates no objects per record; files
+     * over 2 GB are mapped as several record-aligned segments.
+     */
+    static final class ReplayFeed implements Closeable {
+        static final int RECORD_BYTES = 20;
+        private static final long SEGMENT_RECORDS = (1L << 30) / RECORD_BYTES;
+
+        private final FileChannel channel;
+        private final MappedByteBuffer[] segments;
+        private final long records;
+        private long cursor;
+
+        ReplayFeed(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            long bytes = channel.size();
+            if (bytes % RECORD_BYTES != 0) throw new IOException("Truncated tick file: " + file);
+            records = bytes / RECORD_BYTES;
+            int count = (int) ((records + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+            segments = new MappedByteBuffer[count];
+            for (int k = 0; k < count; k++) {
+                long first = k * SEGMENT_RECORDS;
+                long len = Math.min(SEGMENT_RECORDS, records - first) * RECORD_BYTES;
+                segments[k] = channel.map(FileChannel.MapMode.READ_ONLY, first * RECORD_BYTES, len);
+                segments[k].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        /** Encodes one record at the buffer's position (buffer must be little-endian). */
+        static void writeRecord(ByteBuffer buf, int symbolId, long timestamp, double price) {
+            buf.putInt(symbolId).putLong(timestamp).putDouble(price);
+        }
+
+        public long records() { return records; }
+        public long position() { return cursor; }
+        public void rewind() { cursor = 0; }
+
+        private long timestampAt(long r) {
+            return segments[(int) (r / SEGMENT_RECORDS)].getLong((int) (r % SEGMENT_RECORDS) * RECORD_BYTES + 4);
+        }
+
+        /**
+         * Applies every record sharing the next timestamp to {@code px}; IDs at
+         * or beyond {@code size} are skipped. Returns false once exhausted.
+         */
+        boolean replayTick(double[] px, int size) {
+            if (cursor >= records) return false;
+            long ts = timestampAt(cursor);
+            while (cursor < records) {
+                MappedByteBuffer seg = segments[(int) (cursor / SEGMENT_RECORDS)];
+                int off = (int) (cursor % SEGMENT_RECORDS) * RECORD_BYTES;
+                if (seg.getLong(off + 4) != ts) break;
+                int id = seg.getInt(off);
+                if (id >= 0 && id < size) px[id] = seg.getDouble(off + 12);
+                cursor++;
+            }
+            return true;
+        }
+
+        @Override public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Cached factorization of a correlation structure. Either a packed
+     * lower-triangular Cholesky factor L (row i starts at i*(i+1)/2), or an
+     * n x k loading matrix with per-symbol idiosyncratic scales. draw() turns
+     * independent gaussians into one correlated shock per symbol.
+     */
+    static final class CorrelatedShocks implements Serializable {
+        private final int n;
+        private final int k;             // 0 for a full Cholesky factor
+        private final double[] factor;   // packed L, or row-major n x k loadings
+        private final double[] idio;     // factor model only: sqrt(1 - sum of squared loadings)
+        private transient double[] e, f, z;
+
+        private CorrelatedShocks(int n, int k, double[] factor, double[] idio) {
+            this.n = n; this.k = k; this.factor = factor; this.idio = idio;
+        }
+
+        int size() { return n; }
+
+        static CorrelatedShocks cholesky(double[][] corr) {
+            int n = corr.length;
+            double[] l = new double[n * (n + 1) / 2];
+            for (int i = 0; i < n; i++) {
+                if (corr[i].length != n) throw new IllegalArgumentException("Correlation matrix must be square.");
+                int ri = i * (i + 1) / 2;
+                for (int j = 0; j <= i; j++) {
+                    int rj = j * (j + 1) / 2;
+                    double sum = corr[i][j];
+                    for (int m = 0; m < j; m++) sum -= l[ri + m] * l[rj + m];
+                    if (i == j) {
+                        if (sum <= 0) throw new IllegalArgumentException("Correlation matrix is not positive definite.");
+                        l[ri + i] = Math.sqrt(sum);
+                    } else {
+                        l[ri + j] = sum / l[rj + j];
+                    }
+                }
+            }
+            return new CorrelatedShocks(n, 0, l, null);
+        }
+
+        static CorrelatedShocks factorModel(double[][] loadings) {
+            int n = loadings.length;
+            int k = (n == 0) ? 0 : loadings[0].length;
+            if (k == 0) throw new IllegalArgumentException("Factor model needs at least one factor.");
+            double[] b = new double[n * k];
+            double[] idio = new double[n];
+            for (int i = 0; i < n; i++) {
+                if (loadings[i].length != k) throw new IllegalArgumentException("Loadings must be n x k.");
+                double sq = 0;
+                for (int j = 0; j < k; j++) {
+                    b[i * k + j] = loadings[i][j];
+                    sq += loadings[i][j] * loadings[i][j];
+                }
+                if (sq > 1.0) throw new IllegalArgumentException("Loadings for row " + i + " exceed unit variance.");
+                idio[i] = Math.sqrt(1.0 - sq);
+            }
+            return new CorrelatedShocks(n, k, b, idio);
+        }
+
+        /** One correlated unit-variance shock per symbol; the returned buffer is reused. */
+        double[] draw(RandomGenerator rng) {
+            if (z == null) {
+                e = new double[n];
+                f = new double[k];
+                z = new double[n];
+            }
+            for (int i = 0; i < n; i++) e[i] = rng.nextGaussian();
+            if (k == 0) {
+                for (int i = 0, row = 0; i < n; row += ++i) {
+                    double acc = 0;
+                    for (int j = 0; j <= i; j++) acc += factor[row + j] * e[j];
+                    z[i] = acc;
+                }
+            } else {
+                for (int j = 0; j < k; j++) f[j] = rng.nextGaussian();
+                for (int i = 0, row = 0; i < n; i++, row += k) {
+                    double acc = idio[i] * e[i];
+                    for (int j = 0; j < k; j++) acc += factor[row + j] * f[j];
+                    z[i] = acc;
+                }
+            }
+            return z;
+        }
+    }
+
+    /**
+     * Tick loops over a price column. A single random-walk step is applied one
+     * symbol at a time: a blocked variant (draw a block of gaussians into a
+     * buffer, then update the block) measured about 28% slower on a
+     * million-symbol column, since gaussian generation dominates and the
+     * extra pass only adds memory traffic. Price processes and skip-ahead take
+     * their gaussians block by block from a per-thread scratch buffer.
+     */
+    static final class TickKernel {
+        static final int BLOCK = 1024;
+        private static final ThreadLocal<double[]> SCRATCH = ThreadLocal.withInitial(() -> new double[BLOCK]);
+
+        private TickKernel() { }
+
+        static void gbm(double[] px, int from, int to, RandomGenerator rng) {
+            for (int i = from; i < to; i++) px[i] = Market.step(px[i], rng.nextGaussian());
+        }
+
+        /** n steps of {@code process} over [from, to), fed block by block from the scratch buffer. */
+        static void advance(PriceProcess process, double[] px, int from, int to, int n, RandomGenerator rng) {
+            if (process == null) {
+                advance(px, from, to, n, rng);
+                return;
+            }
+            double[] g = SCRATCH.get();
+            for (int t = 0; t < n; t++) {
+                for (int base = from; base < to; base += BLOCK) {
+                    int len = Math.min(BLOCK, to - base);
+                    for (int j = 0; j < len; j++) g[j] = rng.nextGaussian();
+                    process.step(px, base, base + len, g, rng);
+                }
+            }
+        }
+
+        /** n-tick skip-ahead over [from, to); one gaussian per symbol regardless of n. */
+        static void advance(double[] px, int from, int to, int n, RandomGenerator rng) {
+            if (n == 1) {
+                gbm(px, from, to, rng);
+                return;
+            }
+            double[] g = SCRATCH.get();
+            for (int base = from; base < to; base += BLOCK) {
+                int len = Math.min(BLOCK, to - base);
+                for (int j = 0; j < len; j++) g[j] = rng.nextGaussian();
+                for (int j = 0; j < len; j++) px[base + j] = Market.stepN(px[base + j], n, g[j]);
+            }
+        }
+    }
+
+    /* ======================= TRADING CORE ======================= */
+
+    /** How an idle thread waits on the command ring. */
+    enum WaitStrategy {
+        BUSY_SPIN { void idle() { Thread.onSpinWait(); } },
+        YIELD { void idle() { Thread.yield(); } },
+        PARK { void idle() { LockSupport.parkNanos(1_000L); } };
+
+        abstract void idle();
+    }
+
+    /** Log2-bucketed latency histogram; written by one thread, copied to read. */
+    static final class LatencyHistogram {
+        final long[] buckets = new long[64];   // bucket b: [2^(b-1), 2^b) ns
+        long count;
+
+        void record(long nanos) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(0L, nanos))]++;
+            count++;
+        }
+
+        /** Upper bound, in nanoseconds, of the bucket holding quantile {@code q}. */
+        long percentile(double q) {
+            long rank = (long) Math.ceil(q * count), seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= rank && seen > 0) return (b == 0) ? 0 : 1L << b;
+            }
+            return 0;
+        }
+
+        LatencyHistogram copy() {
+            LatencyHistogram h = new LatencyHistogram();
+            System.arraycopy(buckets, 0, h.buckets, 0, buckets.length);
+            h.count = count;
+            return h;
+        }
+    }
+
+    /** Immutable view of a portfolio and the prices it was valued at. */
+    static final class PortfolioSnapshot {
+        final long cashMicros;
+        final long totalValueMicros;
+        final Map<String, Integer> shares;
+        final MarketSnapshot market;
+
+        PortfolioSnapshot(Portfolio p, MarketSnapshot market) {
+            Map<String, Integer> held = new HashMap<>();
+            for (Holding h : p.getHoldings().values()) if (h.shares > 0) held.put(h.symbol, h.shares);
+            this.cashMicros = p.getCashMicros();
+            this.totalValueMicros = p.totalValueMicros(market);
+            this.shares = Collections.unmodifiableMap(held);
+            this.market = market;
+        }
+    }
+
+    /**
+     * Pre-allocated multi-producer single-consumer command ring. Producers
+     * claim a sequence with one atomic increment, fill that slot and publish
+     * it by storing the sequence into the slot's marker; the one consumer
+     * drains published slots in order, completes each command's future and
+     * records its queue-to-completion latency.
+     */
+    static final class CommandRing {
+        enum Op { OPEN, BUY, SELL, TICK, SNAPSHOT }
+
+        /** A reusable ring slot. */
+        static final class Slot {
+            Op op;
+            long account;
+            int symbolId;
+            int shares;
+            long enqueuedNanos;
+            CompletableFuture<Object> result;
+        }
+
+        /** Applies one command on the consumer thread; the return value completes its future. */
+        interface Handler {
+            Object apply(Slot command);
+        }
+
+        private final Slot[] slots;
+        private final int mask;
+        private final WaitStrategy wait;
+        private static final long CLOSED = 1L << 62;    // added to claimed by close(); claims past it are refused
+        private final AtomicLongArray published;        // slot -> sequence stored there
+        private final AtomicLong claimed = new AtomicLong();
+        private final AtomicLong consumed = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        CommandRing(int capacity, WaitStrategy wait) {
+            if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of two.");
+            this.slots = new Slot[capacity];
+            this.mask = capacity - 1;
+            this.wait = wait;
+            this.published = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot();
+                published.set(i, -1L);
+            }
+        }
+
+        CompletableFuture<Object> offer(Op op, long account, int symbolId, int shares) {
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            long seq = claimed.getAndIncrement();
+            if (seq >= CLOSED) {
+                result.completeExceptionally(new IllegalStateException("Command queue is closed."));
+                return result;
+            }
+            while (seq - consumed.get() >= slots.length) wait.idle();   // ring full: back-pressure
+            Slot c = slots[(int) seq & mask];
+            c.op = op;
+            c.account = account;
+            c.symbolId = symbolId;
+            c.shares = shares;
+            c.result = result;
+            c.enqueuedNanos = System.nanoTime();
+            published.lazySet((int) seq & mask, seq);
+            return result;
+        }
+
+        /** Consumer only: applies every published command in order; returns how many. */
+        int drain(Handler handler) {
+            long next = consumed.get(), first = next;
+            for (int idx = (int) next & mask; published.get(idx) == next; idx = (int) next & mask) {
+                Slot c = slots[idx];
+                CompletableFuture<Object> result = c.result;
+                c.result = null;
+                try {
+                    Object value = handler.apply(c);
+                    latency.record(System.nanoTime() - c.enqueuedNanos);
+                    result.complete(value);
+                } catch (Throwable ex) {     // an Error too: the consumer must outlive it, or every later future hangs
+                    latency.record(System.nanoTime() - c.enqueuedNanos);
+                    result.completeExceptionally(ex);
+                }
+                consumed.lazySet(++next);
+            }
+            return (int) (next - first);
+        }
+
+        /**
+         * Consumer only: refuses every later offer (its future fails), then
+         * applies the commands claimed before that point, waiting for any not
+         * yet published. No future is left pending.
+         */
+        void close(Handler handler) {
+            long end = claimed.getAndAdd(CLOSED);
+            while (consumed.get() < end) {
+                if (drain(handler) == 0) wait.idle();
+            }
+        }
+
+        void idle() { wait.idle(); }
+
+        /** Consumer only; copy before handing to other threads. */
+        LatencyHistogram latency() { return latency; }
+    }
+
+    /**
+     * Single-writer engine that owns a Portfolio and its Market. Any number of
+     * threads enqueue commands (buy, sell, tick, snapshot) on a CommandRing;
+     * the core thread drains them in order and applies each with no locks.
+     * Results arrive on a CompletableFuture, and the latest PortfolioSnapshot
+     * is republished after every drained batch. Prices are copied once per
+     * tick, not per batch: until the market ticks again, every snapshot
+     * shares the same MarketSnapshot (the clock's published one if it runs).
+     */
+    static final class TradingCore implements AutoCloseable {
+        private final Portfolio portfolio;
+        private final Market market;
+        private final CommandRing ring;
+        private final Thread thread;
+        private MarketSnapshot prices;      // core thread only; reused until the market ticks again
+        private volatile PortfolioSnapshot latest;
+        private volatile LatencyHistogram latencyView = new LatencyHistogram();
+        private volatile boolean running = true;
+
+        TradingCore(Portfolio portfolio, Market market, int capacity, WaitStrategy wait) {
+            this.portfolio = portfolio;
+            this.market = market;
+            this.ring = new CommandRing(capacity, wait);
+            this.latest = new PortfolioSnapshot(portfolio, prices());
+            this.thread = new Thread(this::drainLoop, "trading-core");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        public CompletableFuture<Object> buy(int symbolId, int shares) { return submit(CommandRing.Op.BUY, symbolId, shares); }
+        public CompletableFuture<Object> sell(int symbolId, int shares) { return submit(CommandRing.Op.SELL, symbolId, shares); }
+        public CompletableFuture<Object> tick() { return submit(CommandRing.Op.TICK, 0, 0); }
+
+        @SuppressWarnings("unchecked")
+        public CompletableFuture<PortfolioSnapshot> snapshot() {
+            return (CompletableFuture<PortfolioSnapshot>) (CompletableFuture<?>) submit(CommandRing.Op.SNAPSHOT, 0, 0);
+        }
+
+        /** Snapshot as of the last drained batch, without queueing. */
+        public PortfolioSnapshot latest() { return latest; }
+
+        /** Queue-to-completion latency of every command so far. */
+        public LatencyHistogram latency() { return latencyView; }
+
+        private CompletableFuture<Object> submit(CommandRing.Op op, int symbolId, int shares) {
+            if (!running) throw new IllegalStateException("Trading core is closed.");
+            return ring.offer(op, 0L, symbolId, shares);
+        }
+
+        private void drainLoop() {
+            while (running) {
+                if (ring.drain(this::apply) == 0) {
+                    ring.idle();
+                    continue;
+                }
+                latest = new PortfolioSnapshot(portfolio, prices());
+                latencyView = ring.latency().copy();
+            }
+            ring.close(this::apply);
+            latest = new PortfolioSnapshot(portfolio, prices());
+            latencyView = ring.latency().copy();
+        }
+
+        private MarketSnapshot prices() {
+            if (prices == null || prices.tick != market.tickCount()) prices = market.snapshot();
+            return prices;
+        }
+
+        private Object apply(CommandRing.Slot c) {
+            switch (c.op) {
+                case BUY: portfolio.buy(c.symbolId, c.shares, market); return null;
+                case SELL: portfolio.sell(c.symbolId, c.shares, market); return null;
+                case TICK: market.tickAll(); return null;
+                case SNAPSHOT: return new PortfolioSnapshot(portfolio, prices());
+                default: throw new IllegalArgumentException("Unsupported command: " + c.op);
+            }
+        }
+
+        /** Drains what is already queued, then stops the core thread. */
+        @Override public void close() {
+            running = false;
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hosts many accounts by sharding their Portfolios across N single-writer
+     * partitions by account ID. Each partition has its own CommandRing and
+     * thread and is the only writer of its accounts, so trades on different
+     * partitions run in parallel with no shared locks. Prices come from one
+     * immutable MarketSnapshot shared read-only by every partition, refreshed
+     * after each tick (the registry listens to the market's ticks).
+     */
+    static final class AccountRegistry implements TickListener, AutoCloseable {
+        private final Market market;
+        private final Partition[] partitions;
+        private volatile MarketSnapshot prices;
+
+        AccountRegistry(Market market, int partitionCount, int ringCapacity, WaitStrategy wait) {
+            if (partitionCount <= 0) throw new IllegalArgumentException("Need at least one partition.");
+            this.market = market;
+            this.prices = market.snapshot();
+            this.partitions = new Partition[partitionCount];
+            for (int i = 0; i < partitionCount; i++) partitions[i] = new Partition(i, ringCapacity, wait);
+            market.addTickListener(this);
+        }
+
+        @Override public void afterTick(Market m) { prices = m.capture(); }
+
+        public CompletableFuture<Object> open(long accountId) { return route(CommandRing.Op.OPEN, accountId, 0, 0); }
+        public CompletableFuture<Object> buy(long accountId, int symbolId, int shares) { return route(CommandRing.Op.BUY, accountId, symbolId, shares); }
+        public CompletableFuture<Object> sell(long accountId, int symbolId, int shares) { return route(CommandRing.Op.SELL, accountId, symbolId, shares); }
+
+        @SuppressWarnings("unchecked")
+        public CompletableFuture<PortfolioSnapshot> snapshot(long accountId) {
+            return (CompletableFuture<PortfolioSnapshot>) (CompletableFuture<?>) route(CommandRing.Op.SNAPSHOT, accountId, 0, 0);
+        }
+
+        int partitionOf(long accountId) {
+            long h = accountId * 0x9E3779B97F4A7C15L;
+            return (int) Math.floorMod(h ^ (h >>> 32), (long) partitions.length);
+        }
+
+        private CompletableFuture<Object> route(CommandRing.Op op, long accountId, int symbolId, int shares) {
+            if (accountId == 0) throw new IllegalArgumentException("Account ID 0 is reserved.");
+            Partition p = partitions[partitionOf(accountId)];
+            if (!p.running) throw new IllegalStateException("Account registry is closed.");
+            return p.ring.offer(op, accountId, symbolId, shares);
+        }
+
+        /** Stops listening to ticks, drains every partition's queue, then stops their threads. */
+        @Override public void close() {
+            market.removeTickListener(this);
+            for (Partition p : partitions) p.running = false;
+            for (Partition p : partitions) {
+                try {
+                    p.thread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /** One shard: its accounts, its ring and the only thread that touches them. */
+        private final class Partition {
+            final CommandRing ring;
+            final LongIntMap index = new LongIntMap(1024);   // account ID -> position in accounts
+            final List<Portfolio> accounts = new ArrayList<>();
+            final Thread thread;
+            volatile boolean running = true;
+
+            Partition(int n, int ringCapacity, WaitStrategy wait) {
+                this.ring = new CommandRing(ringCapacity, wait);
+                this.thread = new Thread(this::drainLoop, "accounts-" + n);
+                this.thread.setDaemon(true);
+                this.thread.start();
+            }
+
+            private void drainLoop() {
+                while (running) {
+                    if (ring.drain(this::apply) == 0) ring.idle();
+                }
+                ring.close(this::apply);
+            }
+
+            private Object apply(CommandRing.Slot c) {
+                if (c.op == CommandRing.Op.OPEN) {
+                    if (index.get(c.account) >= 0) throw new IllegalArgumentException("Account already exists.");
+                    index.put(c.account, accounts.size());
+                    accounts.add(new Portfolio());
+                    return null;
+                }
+                int at = index.get(c.account);
+                if (at < 0) throw new IllegalArgumentException("Unknown account: " + c.account);
+                Portfolio portfolio = accounts.get(at);
+                MarketSnapshot px = prices;
+                switch (c.op) {
+                    case BUY: portfolio.buy(c.symbolId, c.shares, px); return null;
+                    case SELL: portfolio.sell(c.symbolId, c.shares, px); return null;
+                    case SNAPSHOT: return new PortfolioSnapshot(portfolio, px);
+                    default: throw new IllegalArgumentException("Unsupported command: " + c.op);
+                }
+            }
+        }
+    }
+
+    /* ======================= PERSISTENCE ======================= */
+
+    static class SaveData implements Serializable {
+        Portfolio portfolio;
+        Market market;
+        long walSeq;        // last WAL record reflected here (snapshots only)
+        transient List<Transaction> legacyTrades;   // migrated trade history, for the portfolio's journal
+        public SaveData(Portfolio p, Market m) { this.portfolio = p; this.market = m; }
+    }
+
+    /**
+     * Saves in SaveCodec's binary format. Loading sniffs the magic number and
+     * falls back to Java serialization for legacy files (see LegacySave),
+     * behind a filter that only admits this app's classes and the JDK types
+     * they are built from.
+     */
+    static class Storage {
+        private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+                "maxdepth=64;maxrefs=10000000;StockTradingplatform$*;java.lang.*;java.util.*;java.time.*;!*");
+
+        public static void save(String filename, SaveData data) throws IOException {
+            writeAtomically(Path.of(filename), SaveCodec.encode(data, new SaveCodec.Out(64 * 1024)));
+        }
+
+        /** Writes {@code bytes} to a temp file, forces it, then renames it over {@code target}. */
+        static void writeAtomically(Path target, ByteBuffer bytes) throws IOException {
+            Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (bytes.hasRemaining()) ch.write(bytes);
+                ch.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        public static SaveData load(String filename) throws IOException, ClassNotFoundException {
+            ByteBuffer buf;
+            try (FileChannel ch = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+                long size = ch.size();
+                if (size > Integer.MAX_VALUE) throw new IOException("Save file too large: " + filename);
+                buf = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+                while (buf.hasRemaining() && ch.read(buf) >= 0) { }
+                buf.flip();
+            }
+            if (buf.remaining() >= 4 && buf.getInt(0) == SaveCodec.MAGIC) return SaveCodec.decode(buf);
+            return loadLegacy(filename);
+        }
+
+        /** Files written by earlier versions with ObjectOutputStream. */
+        static SaveData loadLegacy(String filename) throws IOException, ClassNotFoundException {
+            try (ObjectInputStream ois = new LegacySave.Input(new FileInputStream(filename))) {
+                ois.setObjectInputFilter(LEGACY_FILTER);
+                Object o = ois.readObject();
+                if (o instanceof LegacySave.SaveData) return ((LegacySave.SaveData) o).migrate();
+                if (o instanceof SaveData) return (SaveData) o;
+                throw new InvalidObjectException("Not a portfolio save: " + o.getClass().getName());
+            }
+        }
+    }
+
+    /**
+     * The original app's save format: SaveData serialized with double money,
+     * full transaction and performance lists and a map-only Market. Those
+     * classes have since changed shape, so Input redirects any stream class
+     * whose fields still match the original layout to a same-shaped shim
+     * below, and migrate() converts the shims to the current model.
+     */
+    static final class LegacySave {
+        static final class SaveData implements Serializable {
+            Portfolio portfolio;
+            Market market;
+
+            StockTradingplatform.SaveData migrate() {
+                StockTradingplatform.Market m = new StockTradingplatform.Market();
+                for (Stock s : market.stocks.values()) {
+                    StockTradingplatform.Stock listed = new StockTradingplatform.Stock(s.symbol, s.name, s.price);
+                    m.addStock(listed);
+                    m.dayOpen[listed.getId()] = s.dayOpen;
+                }
+                StockTradingplatform.Portfolio p = new StockTradingplatform.Portfolio();
+                p.cash = Money.of(portfolio.cash);
+                for (Holding h : portfolio.holdings.values()) {
+                    StockTradingplatform.Holding moved = new StockTradingplatform.Holding(h.symbol, m.idOf(h.symbol));
+                    moved.shares = h.shares;
+                    moved.avgCost = Money.of(h.avgCost);
+                    p.holdings.put(h.symbol, moved);
+                }
+                for (PerformancePoint pt : portfolio.performance) {
+                    p.performance.record(pt.time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), pt.totalValue);
+                }
+                List<StockTradingplatform.Transaction> trades = new ArrayList<>(portfolio.transactions.size());
+                for (Transaction t : portfolio.transactions) {
+                    trades.add(new StockTradingplatform.Transaction(t.time, t.type, t.symbol, t.shares,
+                            Money.of(t.price), Money.of(t.cashAfter)));
+                }
+                StockTradingplatform.SaveData data = new StockTradingplatform.SaveData(p, m);
+                data.legacyTrades = trades;
+                return data;
+            }
+        }
+
+        static final class Portfolio implements Serializable {
+            double cash;
+            Map<String, Holding> holdings;
+            List<Transaction> transactions;
+            List<PerformancePoint> performance;
+        }
+
+        static final class Holding implements Serializable {
+            String symbol;
+            int shares;
+            double avgCost;
+        }
+
+        static final class Transaction implements Serializable {
+            LocalDateTime time;
+            OrderType type;
+            String symbol;
+            int shares;
+            double price;
+            double cashAfter;
+        }
+
+        static final class PerformancePoint implements Serializable {
+            LocalDateTime time;
+            double totalValue;
+        }
+
+        static final class Market implements Serializable {
+            Map<String, Stock> stocks;
+        }
+
+        static final class Stock implements Serializable {
+            String symbol;
+            String name;
+            double price;
+            double dayOpen;
+        }
+
+        private static final Map<String, Class<?>> SHIMS = Map.of(
+                StockTradingplatform.SaveData.class.getName(), SaveData.class,
+                StockTradingplatform.Portfolio.class.getName(), Portfolio.class,
+                StockTradingplatform.Holding.class.getName(), Holding.class,
+                StockTradingplatform.Transaction.class.getName(), Transaction.class,
+                "StockTradingplatform$PerformancePoint", PerformancePoint.class,
+                StockTradingplatform.Market.class.getName(), Market.class,
+                StockTradingplatform.Stock.class.getName(), Stock.class);
+
+        /** Reads stream fields into the shim's descriptor, which is safe only when both layouts agree. */
+        static final class Input extends ObjectInputStream {
+            Input(InputStream in) throws IOException { super(in); }
+
+            @Override protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                ObjectStreamClass desc = super.readClassDescriptor();
+                Class<?> shim = SHIMS.get(desc.getName());
+                if (shim == null) return desc;
+                ObjectStreamClass local = ObjectStreamClass.lookup(shim);
+                return sameFields(desc, local) ? local : desc;
+            }
+
+            private static boolean sameFields(ObjectStreamClass a, ObjectStreamClass b) {
+                ObjectStreamField[] fa = a.getFields(), fb = b.getFields();
+                if (fa.length != fb.length) return false;
+                for (int i = 0; i < fa.length; i++) {
+                    if (!fa[i].getName().equals(fb[i].getName()) || fa[i].getTypeCode() != fb[i].getTypeCode()) return false;
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Background saver. The owning thread captures a SaveImage (cheap) and
+     * submits it; a saver thread forces the journal up to the image's trade
+     * count, encodes the image into a reusable buffer and swaps it into
+     * place with Storage.writeAtomically. There are two image slots:
+     * the one being written and at most one waiting, which a newer capture
+     * simply replaces, so submitting never blocks and never queues up.
+     */
+    static final class AutoSaver implements AutoCloseable {
+        private final Path file;
+        private final long periodMillis;
+        private final SaveCodec.Out out = new SaveCodec.Out(64 * 1024);
+        private final Thread thread;
+        private SaveImage pending;
+        private long submitted, written;        // submission sequence numbers
+        private long lastSubmitMillis;
+        private volatile long lastSavedCapture = -1;
+        private volatile long lastSaveNanos;
+        private IOException lastError;
+        private boolean running = true;
+
+        /** {@code periodMillis} <= 0 turns off the cadence; submit still works. */
+        AutoSaver(Path file, long periodMillis) {
+            this.file = file;
+            this.periodMillis = periodMillis;
+            this.lastSubmitMillis = System.currentTimeMillis();
+            this.thread = new Thread(this::saveLoop, "autosave");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        /** True once the cadence says another capture is due. */
+        boolean due() {
+            return periodMillis > 0 && System.currentTimeMillis() - lastSubmitMillis >= periodMillis;
+        }
+
+        synchronized void submit(SaveImage img) {
+            pending = img;
+            submitted++;
+            lastSubmitMillis = System.currentTimeMillis();
+            notifyAll();
+        }
+
+        /** Waits until everything submitted so far is on disk; rethrows a failed save. */
+        synchronized void flush() throws IOException, InterruptedException {
+            long target = submitted;
+            while (written < target && thread.isAlive()) wait();
+            IOException ex = takeError();
+            if (ex != null) throw ex;
+        }
+
+        /** The failure of a background save not yet reported, if any; clears it. */
+        synchronized IOException takeError() {
+            IOException ex = lastError;
+            lastError = null;
+            return ex;
+        }
+
+        /** Milliseconds since the state in the newest saved file was captured, or -1 before the first save. */
+        long snapshotAgeMillis() {
+            long at = lastSavedCapture;
+            return (at < 0) ? -1 : System.currentTimeMillis() - at;
+        }
+
+        /** Encode plus write time of the last completed save. */
+        long lastSaveNanos() { return lastSaveNanos; }
+
+        private void saveLoop() {
+            while (true) {
+                SaveImage img;
+                long seq;
+                synchronized (this) {
+                    while (pending == null && running) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                    if (pending == null) return;
+                    img = pending;
+                    pending = null;
+                    seq = submitted;
+                }
+                IOException error = null;
+                long t0 = System.nanoTime();
+                try {
+                    if (img.journal != null) img.journal.force(img.journalCount);
+                    Storage.writeAtomically(file, SaveCodec.encode(img, out));
+                    lastSavedCapture = img.capturedAtMillis;
+                    lastSaveNanos = System.nanoTime() - t0;
+                } catch (IOException ex) {
+                    error = ex;
+                }
+                synchronized (this) {
+                    written = seq;
+                    if (error != null) lastError = error;
+                    notifyAll();
+                }
+            }
+        }
+
+        /** Writes whatever is pending, then stops the saver thread. */
+        @Override public void close() {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Point-in-time copy of everything SaveCodec writes, taken on the thread
+     * that owns the Portfolio and Market. Capture is array copies plus shared
+     * references to immutable pieces (Stocks' names, correlation factors,
+     * Transactions), so it is cheap for the owner and can then be encoded on
+     * any thread while trading continues.
+     */
+    static final class SaveImage {
+        /** Copy of bars [from, to) of an OhlcSeries, by bar number. */
+        static final class Chunk {
+            static final int BARS = 256;
+            final long from, to;
+            final long[] start;
+            final double[] open, high, low, close;
+
+            Chunk(OhlcSeries s, long from, long to) {
+                this.from = from;
+                this.to = to;
+                int n = (int) (to - from);
+                start = new long[n];
+                open = new double[n];
+                high = new double[n];
+                low = new double[n];
+                close = new double[n];
+                for (int i = 0; i < n; i++) {
+                    int k = (int) ((from + i) % s.capacity);
+                    start[i] = s.start[k];
+                    open[i] = s.open[k];
+                    high[i] = s.high[k];
+                    low[i] = s.low[k];
+                    close[i] = s.close[k];
+                }
+            }
+        }
+
+        /**
+         * Live bars of an OhlcSeries, oldest first. Only the newest bar still
+         * changes, so closed bars are copied once into chunks that the series
+         * keeps and every later image shares; a capture copies the bars closed
+         * since the last one plus the open tail.
+         */
+        static final class Series {
+            final long width;
+            final int capacity;
+            final long first;           // bar number of the oldest live bar
+            final Chunk[] chunks;       // closed bars, oldest first; the first may start before {@code first}
+            final Chunk tail;           // bars after the last chunk, including the open one
+
+            Series(OhlcSeries s) {
+                width = s.width;
+                capacity = s.capacity;
+                long end = s.opened;
+                first = end - s.size;
+                if (s.closed == null) s.closed = new ArrayDeque<>();
+                ArrayDeque<Chunk> closed = s.closed;
+                while (!closed.isEmpty() && closed.peekFirst().to <= first) closed.removeFirst();
+                long from = closed.isEmpty() ? first : closed.peekLast().to;
+                for (; from + Chunk.BARS < end; from += Chunk.BARS) closed.addLast(new Chunk(s, from, from + Chunk.BARS));
+                chunks = closed.toArray(new Chunk[0]);
+                tail = new Chunk(s, from, end);
+            }
+
+            int size() { return (int) (tail.to - first); }
+        }
+
+        final long capturedAtMillis = System.currentTimeMillis();
+        // market
+        int size;
+        long tickCount, seed;
+        int flags;                  // 1: lazy, 2: parallel
+        Stock[] stocks;
+        double[] price, dayOpen;
+        CorrelatedShocks shocks;
+        int processTag;
+        double[] processParams;
+        double[] processState;      // null when the process keeps none
+        // portfolio
+        long cash, journalId, journalCount;
+        String[] holdingSymbol;
+        int[] holdingId, holdingShares;
+        long[] holdingAvgCost;
+        double base;
+        int rawCapacity;
+        long[] rawTime;
+        double[] rawValue;
+        Series minutes, hours;
+        Transaction[] recent;
+        long walSeq;
+        TransactionJournal journal;     // forced up to journalCount before the image is written
+
+        /** Must run on the owning thread. */
+        static SaveImage capture(SaveData data) {
+            SaveImage img = new SaveImage();
+            Market m = data.market;
+            m.materializeAll();
+            img.size = m.size;
+            img.tickCount = m.tickCount;
+            img.seed = m.seed;
+            img.flags = (m.lazy ? 1 : 0) | (m.parallel ? 2 : 0);
+            img.stocks = Arrays.copyOf(m.byId, m.size);
+            img.price = Arrays.copyOf(m.price, m.size);
+            img.dayOpen = Arrays.copyOf(m.dayOpen, m.size);
+            img.shocks = m.shocks;
+            PriceProcess proc = m.process;
+            if (proc == null) {
+                img.processTag = SaveCodec.PROC_NONE;
+                img.processParams = new double[0];
+            } else if (proc instanceof GarchProcess) {
+                GarchProcess g = (GarchProcess) proc;
+                img.processTag = SaveCodec.PROC_GARCH;
+                img.processParams = new double[] {g.omega, g.alpha, g.beta};
+                img.processState = g.variance.clone();
+            } else if (proc instanceof JumpDiffusionProcess) {
+                JumpDiffusionProcess j = (JumpDiffusionProcess) proc;
+                img.processTag = SaveCodec.PROC_JUMP;
+                img.processParams = new double[] {j.vol, j.lambda, j.jumpMean, j.jumpVol};
+            } else if (proc instanceof OrnsteinUhlenbeckProcess) {
+                OrnsteinUhlenbeckProcess o = (OrnsteinUhlenbeckProcess) proc;
+                img.processTag = SaveCodec.PROC_OU;
+                img.processParams = new double[] {o.theta, o.vol};
+                img.processState = o.logMean.clone();
+            } else {
+                throw new IllegalArgumentException("Price process " + proc.getClass().getSimpleName() + " cannot be saved.");
+            }
+
+            Portfolio p = data.portfolio;
+            img.cash = p.cash;
+            img.journalId = p.journalId;
+            img.journalCount = p.journalCount;
+            img.journal = p.journal;
+            int n = p.holdings.size(), i = 0;
+            img.holdingSymbol = new String[n];
+            img.holdingId = new int[n];
+            img.holdingShares = new int[n];
+            img.holdingAvgCost = new long[n];
+            for (Holding h : p.holdings.values()) {
+                img.holdingSymbol[i] = h.symbol;
+                img.holdingId[i] = h.symbolId;
+                img.holdingShares[i] = h.shares;
+                img.holdingAvgCost[i++] = h.avgCost;
+            }
+            PerformanceHistory ph = p.performance;
+            img.base = ph.base;
+            img.rawCapacity = ph.capacity();
+            img.rawTime = new long[ph.size()];
+            img.rawValue = new double[ph.size()];
+            for (int k = 0; k < ph.size(); k++) {
+                img.rawTime[k] = ph.timeAt(k);
+                img.rawValue[k] = ph.valueAt(k);
+            }
+            img.minutes = new Series(ph.minutes);
+            img.hours = new Series(ph.hours);
+            img.recent = (p.recent == null) ? new Transaction[0] : p.recent.toArray(new Transaction[0]);
+            img.walSeq = data.walSeq;
+            return img;
+        }
+    }
+
+    /**
+     * Hand-written little-endian save format: no reflection, just field by
+     * field puts and gets. Layout, after an int magic and an int version:
+     * the market (symbols with price and day open, tick count, seed, mode
+     * flags, correlation model, price process and its per-symbol state), then
+     * the portfolio (cash, journal ID and count, holdings, performance history
+     * with its rollup tiers, recent transactions), then the WAL sequence.
+     * Strings are an int byte length plus UTF-8. Only the built-in price
+     * processes can be encoded.
+     */
+    static final class SaveCodec {
+        static final int MAGIC = 0x314B5453;    // "STK1" as little-endian bytes
+        static final int VERSION = 1;
+        static final int PROC_NONE = 0, PROC_GARCH = 1, PROC_JUMP = 2, PROC_OU = 3;
+
+        /** Growable, reusable output buffer. */
+        static final class Out {
+            ByteBuffer buf;
+
+            Out(int initialCapacity) {
+                buf = ByteBuffer.allocate(initialCapacity).order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            private ByteBuffer room(int n) {
+                if (buf.remaining() < n) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n))
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    buf.flip();
+                    bigger.put(buf);
+                    buf = bigger;
+                }
+                return buf;
+            }
+
+            Out i8(int v) { room(1).put((byte) v); return this; }
+            Out i32(int v) { room(4).putInt(v); return this; }
+            Out i64(long v) { room(8).putLong(v); return this; }
+            Out f64(double v) { room(8).putDouble(v); return this; }
+
+            Out str(String s) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                room(4 + b.length).putInt(b.length).put(b);
+                return this;
+            }
+
+            Out doubles(double[] a) {
+                i32(a.length);
+                room(8 * a.length);
+                for (double v : a) buf.putDouble(v);
+                return this;
+            }
+        }
+
+        /** Encodes {@code data} into {@code out} (cleared first) and returns the flipped buffer. */
+        static ByteBuffer encode(SaveData data, Out out) {
+            return encode(SaveImage.capture(data), out);
+        }
+
+        /** Same, from a captured image; safe off the owning thread. */
+        static ByteBuffer encode(SaveImage img, Out out) {
+            out.buf.clear();
+            out.i32(MAGIC).i32(VERSION);
+            writeMarket(out, img);
+            writePortfolio(out, img);
+            out.i64(img.walSeq);
+            return out.buf.flip();
+        }
+
+        static SaveData decode(ByteBuffer in) throws IOException {
+            try {
+                in.order(ByteOrder.LITTLE_ENDIAN);
+                if (in.getInt() != MAGIC) throw new IOException("Not a save file.");
+                int version = in.getInt();
+                if (version != VERSION) throw new IOException("Unsupported save version " + version + ".");
+                Market market = readMarket(in);
+                SaveData data = new SaveData(readPortfolio(in), market);
+                data.walSeq = in.getLong();
+                return data;
+            } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException ex) {
+                throw new IOException("Corrupt save file.", ex);
+            }
+        }
+
+        private static void writeMarket(Out out, SaveImage img) {
+            out.i32(img.size).i64(img.tickCount).i64(img.seed).i8(img.flags);
+            for (int i = 0; i < img.size; i++) {
+                out.str(img.stocks[i].getSymbol()).str(img.stocks[i].getName()).f64(img.price[i]).f64(img.dayOpen[i]);
+            }
+            CorrelatedShocks c = img.shocks;
+            if (c == null) {
+                out.i8(0);
+            } else {
+                out.i8(1).i32(c.n).i32(c.k).doubles(c.factor);
+                if (c.k > 0) out.doubles(c.idio);
+            }
+            out.i8(img.processTag);
+            for (double v : img.processParams) out.f64(v);
+            if (img.processState != null) out.doubles(img.processState);
+        }
+
+        private static Market readMarket(ByteBuffer in) {
+            Market m = new Market();
+            int size = in.getInt();
+            long tickCount = in.getLong(), seed = in.getLong();
+            int flags = in.get();
+            for (int i = 0; i < size; i++) {
+                String symbol = readString(in), name = readString(in);
+                double price = in.getDouble(), open = in.getDouble();
+                m.addStock(new Stock(symbol, name, price));
+                m.dayOpen[i] = open;
+            }
+            m.tickCount = tickCount;
+            Arrays.fill(m.asOf, 0, size, tickCount);
+            m.seed = seed;
+            m.lazy = (flags & 1) != 0;
+            m.parallel = (flags & 2) != 0;
+            if (in.get() != 0) {
+                int n = in.getInt(), k = in.getInt();
+                double[] factor = readDoubles(in);
+                double[] idio = (k > 0) ? readDoubles(in) : null;
+                if (n != size || k < 0 || factor.length != ((k == 0) ? (long) n * (n + 1) / 2 : (long) n * k)
+                        || (idio != null && idio.length != n)) {
+                    throw new IllegalArgumentException("Bad correlation factor.");
+                }
+                m.shocks = new CorrelatedShocks(n, k, factor, idio);
+            }
+            switch (in.get()) {
+                case PROC_NONE: break;
+                case PROC_GARCH: {
+                    GarchProcess g = new GarchProcess(in.getDouble(), in.getDouble(), in.getDouble());
+                    g.variance = readDoubles(in);
+                    m.process = g;
+                    break;
+                }
+                case PROC_JUMP:
+                    m.process = new JumpDiffusionProcess(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+                    break;
+                case PROC_OU: {
+                    OrnsteinUhlenbeckProcess o = new OrnsteinUhlenbeckProcess(in.getDouble(), in.getDouble());
+                    o.logMean = readDoubles(in);
+                    m.process = o;
+                    break;
+                }
+                default: throw new IllegalArgumentException("Unknown price process tag.");
+            }
+            return m;
+        }
+
+        private static void writePortfolio(Out out, SaveImage img) {
+            out.i64(img.cash).i64(img.journalId).i64(img.journalCount);
+            out.i32(img.holdingSymbol.length);
+            for (int i = 0; i < img.holdingSymbol.length; i++) {
+                out.str(img.holdingSymbol[i]).i32(img.holdingId[i]).i32(img.holdingShares[i]).i64(img.holdingAvgCost[i]);
+            }
+            out.f64(img.base).i32(img.rawCapacity).i32(img.rawTime.length);
+            for (int i = 0; i < img.rawTime.length; i++) out.i64(img.rawTime[i]).f64(img.rawValue[i]);
+            writeSeries(out, img.minutes);
+            writeSeries(out, img.hours);
+            out.i32(img.recent.length);
+            for (Transaction t : img.recent) {
+                out.i64(t.time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli())
+                        .i8(t.type.ordinal()).str(t.symbol).i32(t.shares).i64(t.price).i64(t.cashAfter);
+            }
+        }
+
+        private static Portfolio readPortfolio(ByteBuffer in) {
+            long cash = in.getLong(), journalId = in.getLong(), journalCount = in.getLong();
+            int holdings = in.getInt();
+            List<Holding> hs = new ArrayList<>(Math.min(holdings, 1024));
+            for (int i = 0; i < holdings; i++) {
+                Holding h = new Holding(readString(in), in.getInt());
+                h.shares = in.getInt();
+                h.avgCost = in.getLong();
+                hs.add(h);
+            }
+            double base = in.getDouble();
+            int capacity = in.getInt(), live = in.getInt();
+            // checked against what is left before allocating, so a corrupt count fails here instead of exhausting the heap
+            if (capacity <= 0 || live < 0 || live > capacity || live > in.remaining() / 16) {
+                throw new IllegalArgumentException("Bad performance history.");
+            }
+            PerformanceHistory ph = new PerformanceHistory(capacity);
+            ph.allocate(capacity, Math.max(live, Math.min(capacity, INITIAL_RING)));
+            for (int i = 0; i < live; i++) {
+                ph.time[i] = in.getLong();
+                ph.value[i] = in.getDouble();
+            }
+            ph.size = live;
+            ph.next = (live == capacity) ? 0 : live;
+            ph.base = base;
+            readSeries(in, ph.minutes);
+            readSeries(in, ph.hours);
+            Portfolio p = new Portfolio(journalId, ph);
+            p.cash = cash;
+            p.journalCount = journalCount;
+            for (Holding h : hs) p.holdings.put(h.symbol, h);
+            int recent = in.getInt();
+            if (recent < 0 || recent > in.remaining() / 33) throw new IllegalArgumentException("Bad transaction count.");
+            if (recent > 0) p.recent = new ArrayDeque<>(recent);
+            for (int i = 0; i < recent; i++) {
+                long millis = in.getLong();
+                OrderType type = OrderType.values()[in.get()];
+                p.recent.addLast(new Transaction(Transaction.localTime(millis), type, readString(in),
+                        in.getInt(), in.getLong(), in.getLong()));
+            }
+            return p;
+        }
 
-        public Stock(String symbol, String name, double initial) {
-            this.symbol = symbol.toUpperCase(Locale.ROOT);
-            this.name = name;
-            this.price = initial;
-            this.dayOpen = initial;
+        private static void writeSeries(Out out, SaveImage.Series s) {
+            out.i64(s.width).i32(s.capacity).i32(s.size());
+            for (SaveImage.Chunk c : s.chunks) writeBars(out, c, s.first);
+            writeBars(out, s.tail, s.first);
         }
 
-        public String getSymbol() { return symbol; }
-        public String getName() { return name; }
-        public double getPrice() { return price; }
-        public double getDayOpen() { return dayOpen; }
+        private static void writeBars(Out out, SaveImage.Chunk c, long first) {
+            for (int i = (int) Math.max(0, first - c.from); i < c.start.length; i++) {
+                out.i64(c.start[i]).f64(c.open[i]).f64(c.high[i]).f64(c.low[i]).f64(c.close[i]);
+            }
+        }
 
-        /** Random walk price update with mild drift/volatility */
-        public void tick(Random rng) {
-            double pctMove = rng.nextGaussian() * 0.005; // ~0.5% std dev per tick
-            price = Math.max(0.01, price * (1.0 + pctMove));
+        private static void readSeries(ByteBuffer in, OhlcSeries s) {
+            long width = in.getLong();
+            int capacity = in.getInt(), live = in.getInt();
+            if (width != s.width || capacity <= 0 || live < 0 || live > capacity || live > in.remaining() / 40) {
+                throw new IllegalArgumentException("Bad OHLC series.");
+            }
+            s.allocate(capacity, Math.max(live, Math.min(capacity, INITIAL_RING)));
+            for (int i = 0; i < live; i++) {
+                s.start[i] = in.getLong();
+                s.open[i] = in.getDouble();
+                s.high[i] = in.getDouble();
+                s.low[i] = in.getDouble();
+                s.close[i] = in.getDouble();
+            }
+            s.size = live;
+            s.next = (live == capacity) ? 0 : live;
+            s.opened = live;
         }
 
-        /** Reset opening price (e.g., new "day") */
-        public void newSession() {
-            dayOpen = price;
+        private static String readString(ByteBuffer in) {
+            int len = in.getInt();
+            if (len < 0 || len > in.remaining()) throw new IllegalArgumentException("Bad string length.");
+            byte[] b = new byte[len];
+            in.get(b);
+            return new String(b, StandardCharsets.UTF_8);
         }
 
-        public double pctChangeFromOpen() {
-            return (price - dayOpen) / dayOpen * 100.0;
+        private static double[] readDoubles(ByteBuffer in) {
+            int len = in.getInt();
+            if (len < 0 || len > in.remaining() / 8) throw new IllegalArgumentException("Bad array length.");
+            double[] a = new double[len];
+            for (int i = 0; i < len; i++) a[i] = in.getDouble();
+            return a;
         }
     }
 
-    static class Holding implements Serializable {
-        String symbol;
-        int shares;
-        double avgCost;
+    /**
+     * Group commit for a file channel: any number of threads submit records,
+     * and a flusher thread gathers what is queued - up to maxBatch records, or
+     * whatever arrived within flushInterval of the first - into one gathering
+     * write followed by one force. Each record's future completes when its
+     * batch is on disk, so N concurrent writers share one fsync instead of
+     * paying N.
+     */
+    static final class GroupCommitWriter implements Closeable {
+        private static final class Pending {
+            final ByteBuffer data;
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            Pending(ByteBuffer data) { this.data = data; }
+        }
 
-        public Holding(String symbol) {
-            this.symbol = symbol;
+        private final FileChannel channel;
+        private final int maxBatch;
+        private final long flushIntervalNanos;
+        private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+        private final Thread flusher;
+        private volatile boolean running = true;
+        private long batches, records;
+
+        GroupCommitWriter(FileChannel channel, int maxBatch, long flushIntervalMicros) {
+            if (maxBatch <= 0 || flushIntervalMicros < 0) throw new IllegalArgumentException("Invalid batch size or flush interval.");
+            this.channel = channel;
+            this.maxBatch = maxBatch;
+            this.flushIntervalNanos = flushIntervalMicros * 1_000L;
+            this.flusher = new Thread(this::flushLoop, "group-commit");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
         }
 
-        public double marketValue(double price) {
-            return shares * price;
+        /**
+         * Queues {@code record} (ownership passes to the writer); completes once
+         * it is forced to disk. Checked and queued under the lock close() takes,
+         * so nothing is queued after the flusher's final drain.
+         */
+        synchronized CompletableFuture<Void> submit(ByteBuffer record) {
+            Pending p = new Pending(record);
+            if (!running) {
+                p.done.completeExceptionally(new IOException("Group commit writer is closed."));
+                return p.done;
+            }
+            queue.add(p);
+            return p.done;
         }
-    }
 
-    static class Transaction implements Serializable {
-        LocalDateTime time;
-        OrderType type;
-        String symbol;
-        int shares;
-        double price;
-        double cashAfter;
+        /** Average records per forced batch so far. */
+        double averageBatch() { return (batches == 0) ? 0 : (double) records / batches; }
 
-        public Transaction(LocalDateTime time, OrderType type, String symbol, int shares, double price, double cashAfter) {
-            this.time = time; this.type = type; this.symbol = symbol;
-            this.shares = shares; this.price = price; this.cashAfter = cashAfter;
+        private void flushLoop() {
+            List<Pending> batch = new ArrayList<>(maxBatch);
+            ByteBuffer[] gather = new ByteBuffer[maxBatch];
+            while (running || !queue.isEmpty()) {
+                try {
+                    Pending first = queue.poll(10, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    long deadline = System.nanoTime() + flushIntervalNanos;
+                    while (batch.size() < maxBatch) {
+                        if (queue.drainTo(batch, maxBatch - batch.size()) > 0) continue;
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0) break;
+                        Pending next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                        batch.add(next);
+                    }
+                } catch (InterruptedException ex) {
+                    if (batch.isEmpty()) continue;
+                }
+                commit(batch, gather);
+                batch.clear();
+            }
         }
 
-        @Override public String toString() {
-            return String.format("%s | %-4s | %-4s x %d @ %.2f | Cash: %.2f",
-                    time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")),
-                    type, symbol, shares, price, cashAfter);
+        private void commit(List<Pending> batch, ByteBuffer[] gather) {
+            int n = batch.size();
+            for (int i = 0; i < n; i++) gather[i] = batch.get(i).data;
+            try {
+                long remaining = 0;
+                for (int i = 0; i < n; i++) remaining += gather[i].remaining();
+                while (remaining > 0) remaining -= channel.write(gather, 0, n);
+                channel.force(false);
+                for (Pending p : batch) p.done.complete(null);
+            } catch (IOException ex) {
+                for (Pending p : batch) p.done.completeExceptionally(ex);
+            }
+            Arrays.fill(gather, 0, n, null);
+            batches++;
+            records += n;
         }
-    }
 
-    static class PerformancePoint implements Serializable {
-        LocalDateTime time;
-        double totalValue;
-        public PerformancePoint(LocalDateTime time, double totalValue) {
-            this.time = time; this.totalValue = totalValue;
+        /** Commits whatever is queued, then stops the flusher. */
+        @Override public void close() {
+            synchronized (this) {
+                running = false;
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
-    static class Portfolio implements Serializable {
-        private double cash = 10_000.00; // starting cash
-        private final Map<String, Holding> holdings = new HashMap<>();
-        private final List<Transaction> transactions = new ArrayList<>();
-        private final List<PerformancePoint> performance = new ArrayList<>();
+    /**
+     * Write-ahead log of the changes made between snapshots: each fill (side,
+     * symbol, shares, price) and each newSession is appended as a fixed 40-byte
+     * little-endian record with a sequence number and a CRC32C, before it is
+     * applied. A checkpoint writes a snapshot of Portfolio + Market (temp file,
+     * then atomic rename) and empties the log, so recovery - load the snapshot,
+     * replay the records after it, stop at the first torn or corrupt one - is
+     * bounded by the snapshot interval rather than by history length.
+     * Records reach the OS on every append (surviving a process crash); they
+     * are forced to the device at checkpoints, or before each append returns
+     * once group commit is enabled.
+     *
+     * Record: long seq, long epoch millis, int type, int symbol ID, int shares,
+     * long price (micro-units), int CRC32C of the preceding 36 bytes.
+     */
+    static final class WriteAheadLog implements Closeable {
+        static final int RECORD_BYTES = 40;
+        static final int SESSION = 2;           // types 0 and 1 are OrderType ordinals
 
-        public double getCash() { return cash; }
-        public Map<String, Holding> getHoldings() { return holdings; }
-        public List<Transaction> getTransactions() { return transactions; }
-        public List<PerformancePoint> getPerformance() { return performance; }
+        private final Path snapshotFile;
+        private final Path logFile;
+        private final FileChannel channel;
+        // guarded by this: records are numbered and queued in one step, so the log stays in sequence order
+        private final ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32C crc = new CRC32C();
+        private final int snapshotEvery;
+        private long seq;                       // last sequence written or replayed
+        private long sinceSnapshot;
+        private GroupCommitWriter committer;    // null: appends are not forced
+        private int inFlight;                   // appends waiting for their force; guarded by this
+        private boolean checkpointing;          // holds new appends back while inFlight drains
 
-        public void recordPerformance(Market market) {
-            performance.add(new PerformancePoint(LocalDateTime.now(), totalValue(market)));
+        WriteAheadLog(Path logFile, Path snapshotFile, int snapshotEvery) throws IOException {
+            if (snapshotEvery <= 0) throw new IllegalArgumentException("Snapshot interval must be positive.");
+            this.logFile = logFile;
+            this.snapshotFile = snapshotFile;
+            this.snapshotEvery = snapshotEvery;
+            this.channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
         }
 
-        public double totalValue(Market market) {
-            double value = cash;
-            for (Holding h : holdings.values()) {
-                double p = market.getPrice(h.symbol);
-                value += h.marketValue(p);
+        /** Latest snapshot, or null when there is nothing to recover. */
+        synchronized SaveData loadSnapshot() throws IOException, ClassNotFoundException {
+            if (!Files.exists(snapshotFile)) return null;
+            SaveData data = Storage.load(snapshotFile.toString());
+            seq = data.walSeq;
+            return data;
+        }
+
+        /**
+         * Re-applies the intact records that follow the loaded snapshot and
+         * returns how many; a short, corrupt or out-of-sequence record ends
+         * the log, and appending resumes right there.
+         */
+        synchronized int replay(Portfolio portfolio, Market market) throws IOException {
+            int applied = 0;
+            long pos = 0;
+            for (;; pos += RECORD_BYTES) {
+                buf.clear();
+                while (buf.hasRemaining() && channel.read(buf, pos + buf.position()) > 0) { }
+                if (buf.hasRemaining()) break;
+                crc.reset();
+                crc.update(buf.array(), 0, RECORD_BYTES - 4);
+                if ((int) crc.getValue() != buf.getInt(RECORD_BYTES - 4)) break;
+                long s = buf.getLong(0);
+                if (s <= seq) continue;                 // already in the snapshot
+                if (s != seq + 1) break;
+                int type = buf.getInt(16), id = buf.getInt(20), shares = buf.getInt(24);
+                if (type == SESSION) {
+                    market.newSession();
+                } else {
+                    portfolio.applyFill(OrderType.values()[type], id, market.symbolOf(id), buf.getLong(28), shares, buf.getLong(8));
+                }
+                seq = s;
+                applied++;
             }
-            return value;
+            channel.truncate(pos);
+            channel.position(pos);
+            sinceSnapshot = applied;
+            return applied;
         }
 
-        public void buy(String symbol, int shares, Market market) {
-            double price = market.getPrice(symbol);
-            if (price <= 0) throw new IllegalArgumentException("Invalid price.");
-            if (shares <= 0) throw new IllegalArgumentException("Shares must be positive.");
-            double cost = price * shares;
-            if (cost > cash + 1e-9) throw new IllegalArgumentException("Insufficient cash.");
+        /**
+         * Makes every later append durable before it returns. Appends from
+         * concurrent callers share forces through a GroupCommitWriter: each
+         * waits for its force outside the log's lock.
+         */
+        synchronized void enableGroupCommit(int maxBatch, long flushIntervalMicros) {
+            if (committer == null) committer = new GroupCommitWriter(channel, maxBatch, flushIntervalMicros);
+        }
 
-            Holding h = holdings.computeIfAbsent(symbol, Holding::new);
+        void logFill(long epochMillis, OrderType side, int symbolId, int shares, long price) {
+            append(epochMillis, side.ordinal(), symbolId, shares, price);
+        }
 
-            // Update average cost
-            double totalCostBefore = h.avgCost * h.shares;
-            h.shares += shares;
-            h.avgCost = (totalCostBefore + cost) / h.shares;
+        void logSession() {
+            append(System.currentTimeMillis(), SESSION, -1, 0, 0);
+        }
 
-            cash -= cost;
-            transactions.add(new Transaction(LocalDateTime.now(), OrderType.BUY, symbol, shares, price, cash));
+        private void append(long epochMillis, int type, int symbolId, int shares, long price) {
+            CompletableFuture<Void> durable = null;
+            synchronized (this) {
+                try {
+                    while (checkpointing) awaitChange();
+                    // a queued record belongs to the writer until forced, so it gets its own buffer
+                    ByteBuffer rec = (committer != null) ? ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN) : buf;
+                    rec.clear();
+                    rec.putLong(seq + 1).putLong(epochMillis).putInt(type)
+                            .putInt(symbolId).putInt(shares).putLong(price);
+                    crc.reset();
+                    crc.update(rec.array(), 0, RECORD_BYTES - 4);
+                    rec.putInt((int) crc.getValue()).flip();
+                    if (committer != null) {
+                        durable = committer.submit(rec);
+                        inFlight++;
+                    } else {
+                        while (rec.hasRemaining()) channel.write(rec);
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                seq++;
+                sinceSnapshot++;
+            }
+            if (durable == null) return;
+            try {
+                durable.join();
+            } catch (CompletionException ex) {
+                Throwable cause = ex.getCause();
+                throw (cause instanceof IOException) ? new UncheckedIOException((IOException) cause) : ex;
+            } finally {
+                synchronized (this) {
+                    if (--inFlight == 0) notifyAll();
+                }
+            }
         }
 
-        public void sell(String symbol, int shares, Market market) {
-            Holding h = holdings.get(symbol);
-            if (h == null || h.shares < shares) throw new IllegalArgumentException("Not enough shares to sell.");
-            if (shares <= 0) throw new IllegalArgumentException("Shares must be positive.");
+        private void awaitChange() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the write-ahead log.");
+            }
+        }
+
+        synchronized boolean snapshotDue() { return sinceSnapshot >= snapshotEvery; }
 
-            double price = market.getPrice(symbol);
-            double proceeds = price * shares;
+        /**
+         * Snapshots {@code data} as of the last record and empties the log.
+         * Appends still waiting for their force are let finish first (new ones
+         * are held back), so the snapshot never counts a record whose append
+         * has not returned to be applied, and none is written after the log is
+         * emptied.
+         */
+        synchronized void checkpoint(SaveData data) throws IOException {
+            checkpointing = true;
+            try {
+                while (inFlight > 0) awaitChange();
+            } finally {
+                checkpointing = false;
+                notifyAll();
+            }
+            data.walSeq = seq;
+            Storage.save(snapshotFile.toString(), data);
+            channel.truncate(0);
+            channel.position(0);
+            sinceSnapshot = 0;
+        }
 
-            h.shares -= shares;
-            if (h.shares == 0) h.avgCost = 0;
+        /** Clean shutdown: state is in the save file, so the log and snapshot go. */
+        void discard() throws IOException {
+            close();
+            Files.deleteIfExists(logFile);
+            Files.deleteIfExists(snapshotFile);
+        }
 
-            cash += proceeds;
-            transactions.add(new Transaction(LocalDateTime.now(), OrderType.SELL, symbol, shares, price, cash));
+        @Override public void close() throws IOException {
+            if (committer != null) committer.close();
+            channel.close();
         }
     }
 
-    static class Market implements Serializable {
-        private final Map<String, Stock> stocks = new LinkedHashMap<>();
-        private transient Random rng = new Random();
+    /**
+     * Append-only trade journal of fixed-size little-endian records written
+     * through memory-mapped segments, so booking a trade is a few stores and
+     * saving only has to force the pages dirtied since the last save. The
+     * header names the portfolio that owns the records; the record count is
+     * kept by that portfolio, so a torn or stale tail is simply ignored.
+     *
+     * Record: long epoch millis, int symbol ID, int side, int shares,
+     * long price and long cash after (micro-units).
+     */
+    static final class TransactionJournal implements Closeable {
+        static final int MAGIC = 0x54584A31;    // "TXJ1"
+        static final int HEADER_BYTES = 16;     // int magic, int reserved, long owner
+        static final int RECORD_BYTES = 36;
+        static final int SEGMENT_RECORDS = 1 << 16;
 
-        public Market() { }
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();   // read by the saver thread's force
+        private long owner;             // portfolio whose records the file holds, 0 if none
+        private long claimant;          // portfolio that takes the file over on its first append
+        private long appended;          // one past the last record appended
+        private long forced;            // records below this are on disk; guarded by this
+        private boolean grown;          // header or file length changed since the last force; guarded by this
 
-        public void addStock(Stock s) { stocks.put(s.getSymbol(), s); }
+        TransactionJournal(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            if (channel.size() >= HEADER_BYTES) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(header, 0);
+                if (header.getInt(0) == MAGIC) owner = header.getLong(8);
+            }
+        }
 
-        public Set<String> symbols() { return stocks.keySet(); }
+        /** Returns how many of {@code count} records belong to {@code ownerId} and may be read back. */
+        long attach(long ownerId, long count) {
+            claimant = ownerId;
+            long kept = (ownerId == owner) ? Math.min(count, recordsOnDisk()) : 0;
+            synchronized (this) {
+                forced = Math.min(forced, kept);   // appends resume at kept and overwrite what follows
+            }
+            appended = kept;
+            return kept;
+        }
 
-        public double getPrice(String symbol) {
-            Stock s = stocks.get(symbol.toUpperCase(Locale.ROOT));
-            if (s == null) throw new IllegalArgumentException("Unknown symbol: " + symbol);
-            return s.getPrice();
+        private long recordsOnDisk() {
+            try {
+                return Math.max(0, (channel.size() - HEADER_BYTES) / RECORD_BYTES);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
         }
 
-        public Stock get(String symbol) { return stocks.get(symbol.toUpperCase(Locale.ROOT)); }
+        void append(long index, long epochMillis, int symbolId, OrderType side, int shares, long price, long cash) {
+            if (owner != claimant) writeHeader(claimant);
+            MappedByteBuffer seg = segment(index);
+            int off = (int) (index % SEGMENT_RECORDS) * RECORD_BYTES;
+            seg.putLong(off, epochMillis);
+            seg.putInt(off + 8, symbolId);
+            seg.putInt(off + 12, side.ordinal());
+            seg.putInt(off + 16, shares);
+            seg.putLong(off + 20, price);
+            seg.putLong(off + 28, cash);
+            appended = index + 1;
+        }
 
-        /** advance market one tick */
-        public void tickAll() {
-            // Recreate RNG if deserialized
-            if (rng == null) rng = new Random();
-            for (Stock s : stocks.values()) s.tick(rng);
+        Transaction read(long index, PriceSource symbols) {
+            MappedByteBuffer seg = segment(index);
+            int off = (int) (index % SEGMENT_RECORDS) * RECORD_BYTES;
+            return new Transaction(Transaction.localTime(seg.getLong(off)),
+                    OrderType.values()[seg.getInt(off + 12)], symbols.symbolOf(seg.getInt(off + 8)),
+                    seg.getInt(off + 16), seg.getLong(off + 20), seg.getLong(off + 28));
         }
 
-        /** Simulate a new "session" (resets day open) */
-        public void newSession() {
-            for (Stock s : stocks.values()) s.newSession();
+        /** Maps (and on first use, extends the file to cover) the segment holding {@code index}. */
+        private MappedByteBuffer segment(long index) {
+            int k = (int) (index / SEGMENT_RECORDS);
+            try {
+                while (segments.size() <= k) {
+                    long pos = HEADER_BYTES + (long) segments.size() * SEGMENT_RECORDS * RECORD_BYTES;
+                    MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_WRITE, pos, (long) SEGMENT_RECORDS * RECORD_BYTES);
+                    seg.order(ByteOrder.LITTLE_ENDIAN);
+                    segments.add(seg);
+                    synchronized (this) {
+                        grown = true;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return segments.get(k);
         }
-    }
 
-    /* ======================= PERSISTENCE ======================= */
+        private void writeHeader(long newOwner) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(0).putLong(newOwner).flip();
+            try {
+                while (header.hasRemaining()) channel.write(header, header.position());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            owner = newOwner;
+            synchronized (this) {
+                grown = true;
+            }
+        }
 
-    static class SaveData implements Serializable {
-        Portfolio portfolio;
-        Market market;
-        public SaveData(Portfolio p, Market m) { this.portfolio = p; this.market = m; }
+        /** Forces every appended record to disk. */
+        void force() throws IOException {
+            force(appended);
+        }
+
+        /**
+         * Forces records below {@code count} to disk. Only the byte range
+         * appended since the last force is synced, so cost follows new trades,
+         * not history length.
+         */
+        synchronized void force(long count) throws IOException {
+            for (long from = forced; from < count; ) {
+                int k = (int) (from / SEGMENT_RECORDS);
+                long end = Math.min(count, (k + 1L) * SEGMENT_RECORDS);
+                int off = (int) (from % SEGMENT_RECORDS) * RECORD_BYTES;
+                segments.get(k).force(off, (int) (end - from) * RECORD_BYTES);
+                from = end;
+            }
+            forced = Math.max(forced, count);
+            if (grown) {
+                channel.force(false);
+                grown = false;
+            }
+        }
+
+        @Override public void close() throws IOException {
+            force();
+            channel.close();
+        }
     }
 
-    static class Storage {
-        public static void save(String filename, SaveData data) throws IOException {
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filename))) {
-                oos.writeObject(data);
+    /* ======================= BENCHMARKS ======================= */
+
+    /**
+     * Ad-hoc throughput benchmarks, run with {@code java StockTradingplatform --bench}.
+     * Each case warms up before measuring; numbers are indicative only.
+     */
+    static class Bench {
+        static final int UNIVERSE = 50_000;
+
+        static void main(String[] args) {
+            tickThroughput();
+            parallelTicks();
+            skipAhead();
+            lazyTicks();
+            correlatedTicks();
+            processAllocation();
+            replay();
+            fixedPointMoney();
+            orderBook();
+            stopTriggers();
+            priceAlerts();
+            tradingCore();
+            accountShards();
+            incrementalValuation();
+            performanceTiers();
+            transactionJournal();
+            writeAheadLog();
+            groupCommit();
+            saveFormat();
+            asyncAutosave();
+        }
+
+        /** Compare the old per-object map walk with the columnar engine. */
+        static void tickThroughput() {
+            Map<String, Stock> objects = new LinkedHashMap<>();
+            Market market = new Market();
+            for (int i = 0; i < UNIVERSE; i++) {
+                String sym = "S" + i;
+                objects.put(sym, new Stock(sym, sym, 100.0));
+                market.addStock(new Stock(sym, sym, 100.0));
             }
+            Random rng = new Random(42);
+            double before = measure(() -> { for (Stock s : objects.values()) s.tick(rng); });
+            double after = measure(market::tickAll);
+            System.out.printf(Locale.US, "tickAll (%,d symbols): object walk %,.0f ticks/s, columnar %,.0f ticks/s%n",
+                    UNIVERSE, before, after);
         }
-        public static SaveData load(String filename) throws IOException, ClassNotFoundException {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filename))) {
-                return (SaveData) ois.readObject();
+
+        /** Sequential vs. sharded parallel ticking, plus a reproducibility check across pool sizes. */
+        static void parallelTicks() {
+            double[] reference = null;
+            // fixed pool sizes, so the determinism check compares different parallelism even on one core
+            for (int threads : new int[] { 1, 4 }) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                Market market = universe(UNIVERSE);
+                market.useParallelTicks(42L, pool);
+                double rate = measure(market::tickAll);
+                Market check = universe(UNIVERSE);
+                check.useParallelTicks(42L, pool);
+                for (int i = 0; i < 100; i++) check.tickAll();
+                double[] prices = Arrays.copyOf(check.price, check.size());
+                boolean same = reference == null || Arrays.equals(reference, prices);
+                if (reference == null) reference = prices;
+                System.out.printf(Locale.US, "parallel tickAll, %d thread(s): %,.0f ticks/s, matches 1-thread run: %s%n",
+                        threads, rate, same);
+                pool.shutdown();
+            }
+        }
+
+        /** advance(n) vs. n tickAll calls: cost, and mean/std of the resulting log-returns. */
+        static void skipAhead() {
+            int n = 20_000;
+            int steps = 500;
+            Market looped = universe(n);
+            Market skipped = universe(n);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < steps; i++) looped.tickAll();
+            long t1 = System.nanoTime();
+            skipped.advance(steps);
+            long t2 = System.nanoTime();
+            System.out.printf(Locale.US, "advance(%d) on %,d symbols: loop %.1f ms, skip-ahead %.1f ms%n",
+                    steps, n, (t1 - t0) / 1e6, (t2 - t1) / 1e6);
+            System.out.printf(Locale.US, "  log-return mean/std: loop %.5f/%.5f, skip-ahead %.5f/%.5f (expected %.5f/%.5f)%n",
+                    logMean(looped), logStd(looped), logMean(skipped), logStd(skipped),
+                    steps * Market.LOG_DRIFT, Math.sqrt(steps) * Market.TICK_VOL);
+        }
+
+        private static double logMean(Market m) {
+            double sum = 0;
+            for (int i = 0; i < m.size(); i++) sum += Math.log(m.getPrice(i) / 100.0);
+            return sum / m.size();
+        }
+
+        private static double logStd(Market m) {
+            double mean = logMean(m), sq = 0;
+            for (int i = 0; i < m.size(); i++) {
+                double d = Math.log(m.getPrice(i) / 100.0) - mean;
+                sq += d * d;
+            }
+            return Math.sqrt(sq / (m.size() - 1));
+        }
+
+        /** Eager vs. lazy ticking when only a handful of a large universe is ever read. */
+        static void lazyTicks() {
+            Market eager = universe(UNIVERSE);
+            Market lazy = universe(UNIVERSE);
+            lazy.useLazyTicks(true);
+            int[] watched = { 0, 17, 4_242, 31_337, UNIVERSE - 1 };
+            double e = measure(() -> { eager.tickAll(); for (int id : watched) eager.getPrice(id); });
+            double l = measure(() -> { lazy.tickAll(); for (int id : watched) lazy.getPrice(id); });
+            System.out.printf(Locale.US, "tick + read %d of %,d symbols: eager %,.0f loops/s, lazy %,.0f loops/s%n",
+                    watched.length, UNIVERSE, e, l);
+        }
+
+        /** Full Cholesky vs. 10-factor model per tick, same universe size. */
+        static void correlatedTicks() {
+            int n = 2_000, k = 10;
+            Random rng = new Random(3);
+            double[][] loadings = new double[n][k];
+            for (double[] row : loadings) for (int j = 0; j < k; j++) row[j] = rng.nextDouble() * 0.25;
+            double[][] corr = new double[n][n];
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    double c = 0;
+                    for (int m = 0; m < k; m++) c += loadings[i][m] * loadings[j][m];
+                    corr[i][j] = (i == j) ? 1.0 : c;
+                }
+            }
+            Market full = universe(n);
+            full.setCorrelation(corr);
+            Market factor = universe(n);
+            factor.setFactorModel(loadings);
+            double a = measure(full::tickAll);
+            double b = measure(factor::tickAll);
+            System.out.printf(Locale.US, "correlated tickAll (%,d symbols): Cholesky %,.0f ticks/s, %d-factor %,.0f ticks/s%n",
+                    n, a, k, b);
+        }
+
+        /** Throughput and heap bytes allocated per tick for each price process. */
+        static void processAllocation() {
+            int n = 100_000;
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            PriceProcess[] processes = { null, GarchProcess.standard(), JumpDiffusionProcess.standard(),
+                    OrnsteinUhlenbeckProcess.standard() };
+            for (PriceProcess process : processes) {
+                Market market = universe(n);
+                market.setProcess(process);
+                double rate = measure(market::tickAll);
+                long tid = Thread.currentThread().getId();
+                long before = threads.getThreadAllocatedBytes(tid);
+                for (int i = 0; i < 100; i++) market.tickAll();
+                long bytes = threads.getThreadAllocatedBytes(tid) - before;
+                String name = (process == null) ? "RandomWalk" : process.getClass().getSimpleName();
+                System.out.printf(Locale.US, "%-25s %,6.1fM symbol-ticks/s, %,d bytes allocated per tick%n",
+                        name, rate * n / 1e6, bytes / 100);
+            }
+        }
+
+        /** Records a synthetic tick file, then replays it through tickAll. */
+        static void replay() {
+            int n = UNIVERSE, ticks = 100;
+            try {
+                Path file = Files.createTempFile("ticks", ".bin");
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    ByteBuffer buf = ByteBuffer.allocateDirect(n * ReplayFeed.RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                    Market source = universe(n);
+                    for (int t = 0; t < ticks; t++) {
+                        source.tickAll();
+                        buf.clear();
+                        for (int i = 0; i < n; i++) ReplayFeed.writeRecord(buf, i, t, source.getPrice(i));
+                        buf.flip();
+                        while (buf.hasRemaining()) ch.write(buf);
+                    }
+                }
+                try (ReplayFeed feed = new ReplayFeed(file)) {
+                    Market market = universe(n);
+                    market.useReplay(feed);
+                    double rate = measure(() -> {
+                        if (feed.position() == feed.records()) feed.rewind();
+                        market.tickAll();
+                    });
+                    System.out.printf(Locale.US, "replay (%,d records/tick): %,.0f ticks/s, %,.1fM records/s%n",
+                            n, rate, rate * n / 1e6);
+                } finally {
+                    Files.delete(file);
+                }
+            } catch (IOException ex) {
+                System.out.println("replay bench failed: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * Fill arithmetic and valuation on fixed-point money against the same
+         * work in doubles, plus how far the double cash balance drifts.
+         */
+        static void fixedPointMoney() {
+            Market market = universe(50);
+            market.tickAll();   // move prices off round numbers
+            int n = market.size();
+            long[] pxMicros = new long[n];
+            double[] px = new double[n];
+            for (int id = 0; id < n; id++) {
+                pxMicros[id] = Money.of(market.getPrice(id));
+                px[id] = Money.toDouble(pxMicros[id]);
+            }
+            int fills = 10_000_000;
+            long t0 = System.nanoTime();
+            long cashMicros = 10_000L * Money.SCALE;
+            for (int i = 0; i < fills; i++) {
+                cashMicros = Money.sub(cashMicros, Money.times(pxMicros[i % n], 3));
+                cashMicros = Money.add(cashMicros, Money.times(pxMicros[(i + 7) % n], 3));
+            }
+            long t1 = System.nanoTime();
+            double cash = 10_000.00;
+            for (int i = 0; i < fills; i++) {
+                cash -= px[i % n] * 3;
+                cash += px[(i + 7) % n] * 3;
+            }
+            long t2 = System.nanoTime();
+            System.out.printf(Locale.US, "%,d fill pairs: fixed-point %.1f ms, double %.1f ms, double drift %d micros%n",
+                    fills, (t1 - t0) / 1e6, (t2 - t1) / 1e6, Money.of(cash) - cashMicros);
+
+            Portfolio p = new Portfolio();
+            for (int id = 0; id < n; id++) p.buy(id, 1, market);
+            long[] sink = new long[1];
+            double fixedRate = measure(() -> sink[0] += p.totalValueMicros(market));
+            double doubleRate = measure(() -> {
+                double v = p.getCash();
+                for (Holding h : p.getHoldings().values()) v += h.marketValue(market.getPrice(h.symbolId));
+                sink[0] += (long) v;
+            });
+            System.out.printf(Locale.US, "totalValue, %d holdings: fixed-point %,.0f/s, double %,.0f/s%n",
+                    n, fixedRate, doubleRate);
+        }
+
+        /**
+         * Mixed order flow on one book around a 100.00 mid, cancel-heavy like
+         * real traffic: 30% limit adds within 50 ticks of mid, 55% cancels and
+         * 10% amends of recent orders, 5% market orders. Reports mean
+         * nanoseconds per message.
+         */
+        static void orderBook() {
+            Market market = universe(1);
+            long[] trades = new long[1];
+            MatchingEngine engine = new MatchingEngine(market, (sym, side, tid, towner, mid, mowner, px, q) -> trades[0]++);
+            SplittableRandom rng = new SplittableRandom(11);
+            long mid = Money.of(100.0), tick = Money.of(0.01);
+            long[] recent = new long[4096];
+            long[] submitted = new long[1];
+            Runnable batch = () -> {
+                for (int i = 0; i < 1000; i++) {
+                    int r = rng.nextInt(100);
+                    OrderType side = rng.nextBoolean() ? OrderType.BUY : OrderType.SELL;
+                    if (r < 30) {
+                        long off = (1 + rng.nextInt(50)) * tick;
+                        long px = (side == OrderType.BUY) ? mid - off + 5 * tick : mid + off - 5 * tick;
+                        long id = engine.submitLimit(1, 0, side, px, 1 + rng.nextInt(100));
+                        recent[(int) (submitted[0]++ & (recent.length - 1))] = id;
+                    } else if (r < 85) {
+                        engine.cancel(recent[rng.nextInt(recent.length)]);
+                    } else if (r < 95) {
+                        engine.reduce(recent[rng.nextInt(recent.length)], 1);
+                    } else {
+                        engine.submitMarket(2, 0, side, 1 + rng.nextInt(200));
+                    }
+                }
+            };
+            double rate = measure(batch);
+            System.out.printf(Locale.US, "order book mix: %.0f ns/message, %,d resting, %,d trades%n",
+                    1e9 / (rate * 1000), engine.liveOrders(), trades[0]);
+        }
+
+        /**
+         * tickAll cost with 100k stops on 5 symbols, none near the price at
+         * the start (the walk reaches some of them while measuring).
+         */
+        static void stopTriggers() {
+            Market plain = universe(5);
+            Market withStops = universe(5);
+            MatchingEngine engine = new MatchingEngine(withStops, (sym, side, tid, towner, mid, mowner, px, q) -> { });
+            SplittableRandom rng = new SplittableRandom(5);
+            for (int i = 0; i < 100_000; i++) {
+                int sym = i % 5;
+                boolean up = rng.nextBoolean();
+                long trigger = Money.of(up ? 200 + rng.nextInt(100) : 10 + rng.nextInt(40));
+                engine.submitStop(1, sym, up ? OrderType.BUY : OrderType.SELL, trigger, 1);
+            }
+            int pending = engine.pendingStops();
+            double a = measure(plain::tickAll);
+            double b = measure(withStops::tickAll);
+            System.out.printf(Locale.US, "tickAll, 5 symbols: no stops %,.0f ticks/s, %,d pending stops %,.0f ticks/s%n",
+                    a, pending, b);
+        }
+
+        /** tickAll with 1M registered alerts spread over 5 symbols. */
+        static void priceAlerts() {
+            Market plain = universe(5);
+            Market watched = universe(5);
+            AlertBook book = new AlertBook(watched);
+            SplittableRandom rng = new SplittableRandom(9);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < 1_000_000; i++) book.register(i % 5, 1 + rng.nextDouble() * 400);
+            long t1 = System.nanoTime();
+            double a = measure(plain::tickAll);
+            double b = measure(watched::tickAll);
+            int fired = 0;
+            while (book.poll() != null) fired++;
+            System.out.printf(Locale.US, "alerts: 1M registered in %.0f ms; tickAll %,.0f ticks/s without, %,.0f with (%,d fired)%n",
+                    (t1 - t0) / 1e6, a, b, fired);
+        }
+
+        /**
+         * 2,000 portfolios of 20 holdings each over 500 symbols: a tick plus a
+         * full totalValue recompute of every portfolio, against a tick that
+         * updates a ValuationIndex plus O(1) reads.
+         */
+        static void incrementalValuation() {
+            Market plain = universe(500), indexed = universe(500);
+            ValuationIndex index = new ValuationIndex(indexed);
+            Portfolio[] a = new Portfolio[2_000], b = new Portfolio[a.length];
+            SplittableRandom rnd = new SplittableRandom(3);
+            for (int i = 0; i < a.length; i++) {
+                a[i] = new Portfolio();
+                b[i] = new Portfolio();
+                index.track(b[i]);
+                for (int k = 0; k < 20; k++) {
+                    int sym = rnd.nextInt(500);
+                    a[i].buy(sym, 1, plain);
+                    b[i].buy(sym, 1, indexed);
+                }
+            }
+            long[] sink = new long[1];
+            double full = measure(() -> {
+                plain.tickAll();
+                for (Portfolio p : a) sink[0] += p.totalValueMicros(plain);
+            });
+            double incremental = measure(() -> {
+                indexed.tickAll();
+                for (Portfolio p : b) sink[0] += index.totalValueMicros(p);
+            });
+            long drift = 0;
+            for (Portfolio p : b) drift = Math.max(drift, Math.abs(index.totalValueMicros(p) - p.totalValueMicros(indexed)));
+            System.out.printf(Locale.US, "valuation, 2k portfolios: recompute %,.0f ticks/s, incremental %,.0f ticks/s (max drift %d micros)%n",
+                    full, incremental, drift);
+        }
+
+        /**
+         * A simulated week of one-second samples through recordPerformance's
+         * history, then a one-day range query at 1-hour and 1-minute resolution.
+         */
+        static void performanceTiers() {
+            PerformanceHistory h = new PerformanceHistory(PerformanceHistory.DEFAULT_CAPACITY);
+            int samples = 7 * 24 * 3600;
+            long t0 = 1_700_000_000_000L;
+            long start = System.nanoTime();
+            for (int i = 0; i < samples; i++) h.record(t0 + i * 1000L, 10_000 + Math.sin(i / 5000.0) * 500);
+            double recordRate = samples * 1e9 / (System.nanoTime() - start);
+            long end = t0 + (samples - 1) * 1000L;
+            double[] sink = new double[1];
+            PerformanceHistory.BarVisitor v = (ts, o, hi, lo, c) -> sink[0] += c;
+            int hourly = h.range(end - 86_400_000L, end, PerformanceHistory.HOUR, v);
+            int minutely = h.range(end - 86_400_000L, end, PerformanceHistory.MINUTE, v);
+            double queryRate = measure(() -> h.range(end - 86_400_000L, end, PerformanceHistory.HOUR, v));
+            System.out.printf(Locale.US, "history: %,.0f samples/s recorded, %d raw kept; last day = %d hourly / %d minute bars, %,.0f hourly queries/s%n",
+                    recordRate, h.size(), hourly, minutely, queryRate);
+        }
+
+        /**
+         * Fills booked with and without a journal, then the cost of a save
+         * (journal force) after millions of trades and after a thousand more.
+         */
+        static void transactionJournal() {
+            try {
+                Path file = Files.createTempFile("trades", ".journal");
+                try (TransactionJournal journal = new TransactionJournal(file)) {
+                    Portfolio plain = new Portfolio(), journaled = new Portfolio();
+                    journaled.attachJournal(journal);
+                    double a = measure(roundTrip(plain));
+                    Runnable trade = roundTrip(journaled);
+                    double b = measure(trade);
+                    for (int i = 0; i < 500_000; i++) trade.run();
+                    long trades = journaled.journalCount;
+                    long t0 = System.nanoTime();
+                    journal.force();
+                    long t1 = System.nanoTime();
+                    for (int i = 0; i < 500; i++) trade.run();
+                    long t2 = System.nanoTime();
+                    journal.force();
+                    long t3 = System.nanoTime();
+                    System.out.printf(Locale.US, "journal: round trips %,.0f/s in memory, %,.0f/s journaled; save after %,d trades %.1f ms, after 1k more %.2f ms%n",
+                            a, b, trades, (t1 - t0) / 1e6, (t3 - t2) / 1e6);
+                } finally {
+                    Files.delete(file);
+                }
+            } catch (IOException ex) {
+                System.out.println("journal bench failed: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * Fills logged to a WAL, then recovery time (snapshot load plus log
+         * replay) for tails of several lengths once the history before them
+         * has been checkpointed away: it follows the tail, not the history.
+         */
+        static void writeAheadLog() {
+            try {
+                Path dir = Files.createTempDirectory("wal");
+                Path log = dir.resolve("bench.wal"), snap = dir.resolve("bench.snap");
+                try {
+                    Market market = universe(50);
+                    Portfolio p = new Portfolio();
+                    WriteAheadLog wal = new WriteAheadLog(log, snap, 1000);
+                    wal.checkpoint(new SaveData(p, market));
+                    p.attachWal(wal);
+                    double rate = measure(roundTrip(p));
+                    wal.checkpoint(new SaveData(p, market));
+                    StringBuilder line = new StringBuilder();
+                    for (int tail : new int[] {1_000, 10_000, 100_000}) {
+                        for (int i = 0; i < tail / 2; i++) roundTrip(p).run();
+                        long t0 = System.nanoTime();
+                        try (WriteAheadLog r = new WriteAheadLog(log, snap, 1000)) {
+                            SaveData data = r.loadSnapshot();
+                            r.replay(data.portfolio, data.market);
+                        }
+                        line.append(String.format(Locale.US, ", %,d-record tail %.1f ms", tail, (System.nanoTime() - t0) / 1e6));
+                        wal.checkpoint(new SaveData(p, market));
+                    }
+                    wal.close();
+                    System.out.printf(Locale.US, "wal: %,.0f logged round trips/s; recovery%s%n", rate, line);
+                } finally {
+                    Files.deleteIfExists(log);
+                    Files.deleteIfExists(snap);
+                    Files.delete(dir);
+                }
+            } catch (IOException | ClassNotFoundException ex) {
+                System.out.println("wal bench failed: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * Durable 40-byte records per second: one thread forcing after every
+         * write, then 64 writer threads waiting on a GroupCommitWriter at
+         * several batch sizes (200 us flush interval).
+         */
+        static void groupCommit() {
+            int writers = 64;
+            try {
+                Path file = Files.createTempFile("commit", ".log");
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    ByteBuffer rec = ByteBuffer.allocate(WriteAheadLog.RECORD_BYTES);
+                    long end = System.nanoTime() + 1_000_000_000L, n = 0;
+                    for (; System.nanoTime() < end; n++) {
+                        rec.clear();
+                        ch.write(rec);
+                        ch.force(false);
+                    }
+                    StringBuilder line = new StringBuilder(String.format(Locale.US, "fsync per trade %,d/s", n));
+                    for (int batch : new int[] {1, 8, 64, 256}) {
+                        GroupCommitWriter w = new GroupCommitWriter(ch, batch, 200);
+                        long[] done = new long[writers];
+                        long stop = System.nanoTime() + 1_000_000_000L;
+                        Thread[] threads = new Thread[writers];
+                        for (int t = 0; t < writers; t++) {
+                            int id = t;
+                            threads[t] = new Thread(() -> {
+                                while (System.nanoTime() < stop) {
+                                    w.submit(ByteBuffer.allocate(WriteAheadLog.RECORD_BYTES)).join();
+                                    done[id]++;
+                                }
+                            });
+                            threads[t].start();
+                        }
+                        for (Thread t : threads) t.join();
+                        w.close();
+                        long total = 0;
+                        for (long d : done) total += d;
+                        line.append(String.format(Locale.US, "; batch %d: %,d/s (avg %.1f per force)", batch, total, w.averageBatch()));
+                    }
+                    System.out.println("group commit: " + line);
+                } finally {
+                    Files.delete(file);
+                }
+            } catch (IOException ex) {
+                System.out.println("group commit bench failed: " + ex.getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Encode and decode of a full SaveData (1,000 symbols, 200 holdings,
+         * a full performance ring) in memory: Java serialization against
+         * SaveCodec, with the size of each.
+         */
+        static void saveFormat() {
+            Market market = universe(1_000);
+            Portfolio p = new Portfolio();
+            for (int i = 0; i < 200; i++) p.applyFill(OrderType.BUY, i * 5, market.symbolOf(i * 5), Money.SCALE, 1);
+            for (int i = 0; i < PerformanceHistory.DEFAULT_CAPACITY; i++) p.getPerformance().record(1_700_000_000_000L + i * 1000L, 10_000 + i);
+            SaveData data = new SaveData(p, market);
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                    oos.writeObject(data);
+                }
+                byte[] legacy = bytes.toByteArray();
+                double javaWrite = measure(() -> {
+                    try (ObjectOutputStream oos = new ObjectOutputStream(new ByteArrayOutputStream(legacy.length))) {
+                        oos.writeObject(data);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+                double javaRead = measure(() -> {
+                    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(legacy))) {
+                        ois.readObject();
+                    } catch (IOException | ClassNotFoundException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                });
+                SaveCodec.Out out = new SaveCodec.Out(64 * 1024);
+                int binarySize = SaveCodec.encode(data, out).remaining();
+                byte[] binary = new byte[binarySize];
+                out.buf.get(binary);
+                double codecWrite = measure(() -> SaveCodec.encode(data, out));
+                double codecRead = measure(() -> {
+                    try {
+                        SaveCodec.decode(ByteBuffer.wrap(binary));
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+                System.out.printf(Locale.US, "save format: java %,d bytes, %,.0f saves/s, %,.0f loads/s; binary %,d bytes, %,.0f saves/s, %,.0f loads/s%n",
+                        legacy.length, javaWrite, javaRead, binarySize, codecWrite, codecRead);
+            } catch (IOException ex) {
+                System.out.println("save format bench failed: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * What the trading thread pays per save: a synchronous Storage.save
+         * (encode, write, fsync, rename) against a SaveImage capture handed to
+         * an AutoSaver, plus round-trip trade throughput while the saver runs
+         * back to back in the background.
+         */
+        static void asyncAutosave() {
+            Market market = universe(1_000);
+            Portfolio p = new Portfolio();
+            for (int i = 0; i < PerformanceHistory.DEFAULT_CAPACITY; i++) p.getPerformance().record(1_700_000_000_000L + i * 1000L, 10_000 + i);
+            SaveData data = new SaveData(p, market);
+            try {
+                Path file = Files.createTempFile("autosave", ".dat");
+                try (AutoSaver saver = new AutoSaver(file, 0)) {
+                    int saves = 50;
+                    long t0 = System.nanoTime();
+                    for (int i = 0; i < saves; i++) Storage.save(file.toString(), data);
+                    long t1 = System.nanoTime();
+                    for (int i = 0; i < saves; i++) saver.submit(SaveImage.capture(data));
+                    long t2 = System.nanoTime();
+                    saver.flush();
+                    double quiet = measure(roundTrip(p));
+                    AtomicBoolean busy = new AtomicBoolean(true);
+                    SaveImage image = SaveImage.capture(data);
+                    Thread feeder = new Thread(() -> {
+                        try {
+                            while (busy.get()) {
+                                saver.submit(image);
+                                saver.flush();
+                            }
+                        } catch (IOException | InterruptedException ex) {
+                            busy.set(false);
+                        }
+                    });
+                    double loaded;
+                    feeder.start();
+                    try {
+                        loaded = measure(roundTrip(p));
+                    } finally {
+                        busy.set(false);
+                        feeder.join();
+                    }
+                    saver.flush();
+                    System.out.printf(Locale.US, "autosave: sync save %.2f ms, capture %.3f ms (write %.2f ms off-thread); trades %,.0f/s idle, %,.0f/s while saving%n",
+                            (t1 - t0) / 1e6 / saves, (t2 - t1) / 1e6 / saves, saver.lastSaveNanos() / 1e6, quiet, loaded);
+                } finally {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException ex) {
+                System.out.println("autosave bench failed: " + ex.getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Books a 1-share buy and sells it back, two journal records per call. */
+        private static Runnable roundTrip(Portfolio p) {
+            return () -> {
+                p.applyFill(OrderType.BUY, 0, "S0", Money.SCALE, 1);
+                p.applyFill(OrderType.SELL, 0, "S0", Money.SCALE, 1);
+            };
+        }
+
+        /**
+         * Two producer threads feeding a TradingCore (buys, sells and ticks)
+         * under each wait strategy. Throughput is taken with the producers
+         * flat out; latency (queue to done) with them paced to a quarter of
+         * that rate, since a saturated ring only measures its own backlog.
+         */
+        static void tradingCore() {
+            for (WaitStrategy strategy : WaitStrategy.values()) {
+                try {
+                    long start = System.nanoTime();
+                    long count = feedCore(strategy, 100_000, 0).count;
+                    double rate = count * 1e9 / (System.nanoTime() - start);
+                    LatencyHistogram h = feedCore(strategy, 20_000, (long) (2 * 4 * 1e9 / rate));
+                    System.out.printf(Locale.US, "core %-9s %,9.0f cmds/s; at %,.0f cmds/s p50 <%,d ns  p99 <%,d ns  p99.9 <%,d ns%n",
+                            strategy, rate, rate / 4, h.percentile(0.50), h.percentile(0.99), h.percentile(0.999));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /** Runs the command mix through a fresh core; {@code intervalNanos} > 0 paces each producer. */
+        private static LatencyHistogram feedCore(WaitStrategy strategy, int perProducer, long intervalNanos) throws InterruptedException {
+            TradingCore core = new TradingCore(new Portfolio(), universe(50), 1 << 14, strategy);
+            try {
+                Thread[] producers = new Thread[2];
+                for (int t = 0; t < producers.length; t++) {
+                    producers[t] = new Thread(() -> {
+                        long due = System.nanoTime();
+                        for (int i = 0; i < perProducer; i++) {
+                            if (intervalNanos > 0) {
+                                due += intervalNanos;   // parks rather than spins, so pacing leaves the core its CPU
+                                long wait = due - System.nanoTime();
+                                if (wait > 0) LockSupport.parkNanos(wait);
+                            }
+                            int sym = i % 50;
+                            if (i % 10 == 9) core.tick();
+                            else if ((i & 1) == 0) core.buy(sym, 1);
+                            else core.sell(sym, 1);
+                        }
+                    });
+                    producers[t].start();
+                }
+                for (Thread p : producers) p.join();
+            } finally {
+                core.close();
             }
+            return core.latency();
+        }
+
+        /**
+         * Buys spread over 100k accounts by one producer per partition, for
+         * partition counts doubling up to the core count; throughput should
+         * grow with partitions while cores last.
+         */
+        static void accountShards() {
+            int accounts = 100_000, perProducer = 200_000;
+            int cores = Runtime.getRuntime().availableProcessors();
+            Market market = universe(50);
+            for (int n = 1; ; n = Math.min(n * 2, cores)) {
+                AccountRegistry registry = new AccountRegistry(market, n, 1 << 14, WaitStrategy.YIELD);
+                for (long a = 1; a <= accounts; a++) registry.open(a);
+                registry.snapshot(accounts).join();
+                Thread[] producers = new Thread[n];
+                for (int t = 0; t < n; t++) {
+                    long seed = t;
+                    producers[t] = new Thread(() -> {
+                        SplittableRandom rnd = new SplittableRandom(seed);
+                        for (int i = 0; i < perProducer; i++) {
+                            registry.buy(1 + rnd.nextInt(accounts), rnd.nextInt(50), 1);
+                        }
+                    });
+                }
+                long start = System.nanoTime();
+                for (Thread p : producers) p.start();
+                try {
+                    for (Thread p : producers) p.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    registry.close();
+                }
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                System.out.printf(Locale.US, "accounts, %d partition(s): %,.0f trades/s%n",
+                        n, (double) n * perProducer / elapsed);
+                if (n == cores) break;
+            }
+        }
+
+        static Market universe(int n) {
+            Market market = new Market();
+            for (int i = 0; i < n; i++) market.addStock(new Stock("S" + i, "S" + i, 100.0));
+            return market;
+        }
+
+        /** Returns calls per second of {@code op} after warm-up. */
+        static double measure(Runnable op) {
+            for (int i = 0; i < 200; i++) op.run();
+            int iters = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                op.run();
+                iters++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < 1_000_000_000L);
+            return iters * 1e9 / elapsed;
         }
     }
 
@@ -212,7 +4646,24 @@ public class StockTradingplatform {
     private final Scanner in = new Scanner(System.in);
     private Portfolio portfolio = new Portfolio();
     private Market market = defaultMarket();
+    private MarketClock clock;       // null: market ticks once per menu loop
+    private TransactionJournal journal;
+    private WriteAheadLog wal;
+    private AutoSaver autosaver;
+    private final long AUTOSAVE_SECONDS = Long.getLong("portfolio.autosaveSeconds", 30L);   // 0: only on request
+    private final String WAL_FILE = "portfolio.wal";
+    private final String SNAPSHOT_FILE = "portfolio.snap";
+    private final int SNAPSHOT_EVERY = Integer.getInteger("portfolio.snapshotEvery", 1000);   // WAL records between snapshots
+    private final boolean WAL_SYNC = Boolean.getBoolean("portfolio.walSync");
+    private final int COMMIT_BATCH = Integer.getInteger("storage.batchSize", 64);
+    private final long COMMIT_FLUSH_MICROS = Long.getLong("storage.flushMicros", 200L);
+    private AlertBook alerts = new AlertBook(market);
     private final String SAVE_FILE = "portfolio.dat";
+    private boolean saveFileUnreadable;  // a load failed: keep autosave off the file until saved on request
+    private final String JOURNAL_GLOB = "portfolio-*.journal";   // one per portfolio, named by its journal ID
+    private final double CLOCK_HZ = Double.parseDouble(System.getProperty("market.clockHz", "0"));
+    private static final DateTimeFormatter TIME_FMT =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
 
     private static Market defaultMarket() {
         Market m = new Market();
@@ -226,17 +4677,27 @@ public class StockTradingplatform {
 
     private void run() {
         System.out.println("=== Stock Trading Platform (Single File) ===");
+        openWal();
+        autosaver = new AutoSaver(Path.of(SAVE_FILE), AUTOSAVE_SECONDS * 1000);
         System.out.println("Starting cash: $" + fmt(portfolio.getCash()));
+        if (wal != null) wal.logSession();
         market.newSession();
-        portfolio.recordPerformance(market);
+        startClock();
+        trackValuation();
+        portfolio.recordPerformance(prices());
 
         boolean running = true;
         while (running) {
-            market.tickAll();                // market moves every loop
-            portfolio.recordPerformance(market);
+            if (clock == null) market.tickAll();   // market moves every loop
+            portfolio.recordPerformance(prices());
+            for (PriceAlert a; (a = alerts.poll()) != null; ) System.out.println("🔔 " + a);
+            RuntimeException tickError = (clock == null) ? null : clock.takeError();
+            if (tickError != null) System.out.println("⚠️ Market clock tick failed: " + tickError);
+            IOException saveError = autosaver.takeError();
+            if (saveError != null) System.out.println("⚠️ Background save to " + SAVE_FILE + " failed: " + saveError.getMessage());
 
             System.out.println();
-            System.out.println("Menu: [1] Market [2] Buy [3] Sell [4] Portfolio [5] Performance [6] Save [7] Load [0] Exit");
+            System.out.println("Menu: [1] Market [2] Buy [3] Sell [4] Portfolio [5] Performance [6] Save [7] Load [8] Alert [0] Exit");
             System.out.print("Choose: ");
             String choice = in.nextLine().trim();
 
@@ -249,12 +4710,15 @@ public class StockTradingplatform {
                     case "5": showPerformance(); break;
                     case "6": saveFlow(); break;
                     case "7": loadFlow(); break;
+                    case "8": alertFlow(); break;
                     case "0":
                         autoSaveOnExit();
                         running = false;
                         break;
                     default: System.out.println("Invalid option.");
                 }
+                if (running && wal != null && wal.snapshotDue()) checkpoint();
+                if (running && !saveFileUnreadable && autosaver.due()) autosaver.submit(captureForSave());
             } catch (Exception ex) {
                 System.out.println("⚠️ " + ex.getMessage());
             }
@@ -266,10 +4730,10 @@ public class StockTradingplatform {
     private void showMarket() {
         System.out.println("\n--- Market Data ---");
         System.out.printf("%-6s %-18s %10s %10s%n", "SYM", "NAME", "PRICE", "CHG%");
-        for (String sym : market.symbols()) {
-            Stock s = market.get(sym);
+        MarketSnapshot snap = market.snapshot();
+        for (int id = 0; id < snap.size(); id++) {
             System.out.printf("%-6s %-18s %10s %9.2f%%%n",
-                    s.getSymbol(), truncate(s.getName(), 18), fmt(s.getPrice()), s.pctChangeFromOpen());
+                    snap.symbolOf(id), truncate(snap.nameOf(id), 18), fmt(snap.getPrice(id)), snap.pctChangeFromOpen(id));
         }
     }
 
@@ -279,12 +4743,13 @@ public class StockTradingplatform {
         System.out.print("Shares: ");
         int qty = Integer.parseInt(in.nextLine().trim());
 
-        double price = market.getPrice(symbol);
+        MarketSnapshot quote = market.snapshot();   // the price confirmed is the price filled
+        double price = quote.getPrice(symbol);
         double cost = price * qty;
         System.out.printf("Confirm BUY %d %s @ %s = %s ? (y/n): ",
                 qty, symbol, fmt(price), fmt(cost));
         if (yes()) {
-            portfolio.buy(symbol, qty, market);
+            portfolio.buy(symbol, qty, quote);
             System.out.println("✅ Bought. Cash now: $" + fmt(portfolio.getCash()));
         } else {
             System.out.println("Cancelled.");
@@ -297,12 +4762,13 @@ public class StockTradingplatform {
         System.out.print("Shares: ");
         int qty = Integer.parseInt(in.nextLine().trim());
 
-        double price = market.getPrice(symbol);
+        MarketSnapshot quote = market.snapshot();   // the price confirmed is the price filled
+        double price = quote.getPrice(symbol);
         double proceeds = price * qty;
         System.out.printf("Confirm SELL %d %s @ %s = %s ? (y/n): ",
                 qty, symbol, fmt(price), fmt(proceeds));
         if (yes()) {
-            portfolio.sell(symbol, qty, market);
+            portfolio.sell(symbol, qty, quote);
             System.out.println("✅ Sold. Cash now: $" + fmt(portfolio.getCash()));
         } else {
             System.out.println("Cancelled.");
@@ -315,56 +4781,226 @@ public class StockTradingplatform {
         System.out.printf("%-6s %8s %10s %12s %12s %10s%n",
                 "SYM", "SHARES", "AVG COST", "PRICE", "MKT VALUE", "P/L%");
         double totalHoldings = 0.0;
+        MarketSnapshot snap = market.snapshot();
         for (Holding h : portfolio.getHoldings().values()) {
-            double price = market.getPrice(h.symbol);
+            double price = snap.getPrice(h.symbolId);
             double value = h.marketValue(price);
             totalHoldings += value;
-            double plPct = (h.avgCost > 0) ? ((price - h.avgCost) / h.avgCost * 100.0) : 0;
+            double avgCost = Money.toDouble(h.avgCost);
+            double plPct = (avgCost > 0) ? ((price - avgCost) / avgCost * 100.0) : 0;
             System.out.printf("%-6s %8d %10s %12s %12s %9.2f%%%n",
-                    h.symbol, h.shares, fmt(h.avgCost), fmt(price), fmt(value), plPct);
+                    h.symbol, h.shares, fmt(avgCost), fmt(price), fmt(value), plPct);
         }
         double total = portfolio.getCash() + totalHoldings;
         System.out.println("Total Value: $" + fmt(total));
 
         System.out.println("\nRecent Transactions:");
-        List<Transaction> txs = portfolio.getTransactions();
-        int from = Math.max(0, txs.size() - 8);
-        for (int i = txs.size() - 1; i >= from; i--) {
-            System.out.println("  " + txs.get(i));
+        for (Transaction t : portfolio.recentTransactions(8, snap)) {
+            System.out.println("  " + t);
         }
     }
 
     private void showPerformance() {
         System.out.println("\n--- Performance (latest 10 points) ---");
-        List<PerformancePoint> pts = portfolio.getPerformance();
+        PerformanceHistory pts = portfolio.getPerformance();
         int start = Math.max(0, pts.size() - 10);
-        double base = pts.get(0).totalValue;
+        double base = pts.base();
         for (int i = start; i < pts.size(); i++) {
-            PerformancePoint p = pts.get(i);
-            double chg = (p.totalValue - base) / base * 100.0;
+            double v = pts.valueAt(i);
+            double chg = (v - base) / base * 100.0;
             System.out.printf("%s | %s | %+.2f%%%n",
-                    p.time.format(DateTimeFormatter.ofPattern("HH:mm:ss")),
-                    fmt(p.totalValue), chg);
+                    TIME_FMT.format(Instant.ofEpochMilli(pts.timeAt(i))),
+                    fmt(v), chg);
         }
     }
 
-    private void saveFlow() throws IOException {
-        Storage.save(SAVE_FILE, new SaveData(portfolio, market));
-        System.out.println("💾 Saved to " + SAVE_FILE);
+    private void alertFlow() throws Exception {
+        System.out.print("Symbol to watch: ");
+        String symbol = in.nextLine().trim().toUpperCase(Locale.ROOT);
+        System.out.print("Alert price: ");
+        double level = Double.parseDouble(in.nextLine().trim());
+        int id = market.snapshot().idOf(symbol);
+        onMarketThread(() -> alerts.register(id, level));
+        System.out.println("🔔 Alert set for " + symbol + " at " + fmt(level));
+    }
+
+    private void saveFlow() throws Exception {
+        long age = autosaver.snapshotAgeMillis();
+        autosaver.submit(captureForSave());
+        saveFileUnreadable = false;
+        System.out.println("💾 Saving to " + SAVE_FILE + " in the background"
+                + ((age < 0) ? "" : String.format(" (previous save captured %.1fs ago)", age / 1000.0)));
     }
 
-    private void loadFlow() throws IOException, ClassNotFoundException {
-        SaveData data = Storage.load(SAVE_FILE);
+    private void loadFlow() throws Exception {
+        autosaver.flush();   // a save still in flight would otherwise be missed
+        SaveData data;
+        try {
+            data = Storage.load(SAVE_FILE);
+        } catch (NoSuchFileException ex) {
+            throw new IOException("No save file: " + SAVE_FILE);
+        } catch (Exception ex) {
+            saveFileUnreadable = true;
+            throw new IOException("Could not load " + SAVE_FILE + " (left untouched until you save): " + ex.getMessage(), ex);
+        }
+        stopClock();
+        detachListeners();
         this.portfolio = data.portfolio;
         this.market = data.market;
+        openJournal();
+        if (data.legacyTrades != null) portfolio.importTrades(data.legacyTrades, market);
+        if (wal != null) {
+            portfolio.attachWal(wal);
+            checkpoint();
+        }
+        this.alerts = new AlertBook(market);
+        startClock();
+        trackValuation();
         System.out.println("📂 Loaded from " + SAVE_FILE);
     }
 
     private void autoSaveOnExit() {
         try {
-            Storage.save(SAVE_FILE, new SaveData(portfolio, market));
-            System.out.println("Auto-saved to " + SAVE_FILE);
-        } catch (Exception ignored) { }
+            if (saveFileUnreadable) {
+                System.out.println("⚠️ Not auto-saving: " + SAVE_FILE + " could not be loaded and is left as it was.");
+            } else {
+                save();
+                System.out.println("Auto-saved to " + SAVE_FILE);
+                if (wal != null) wal.discard();   // otherwise kept, so the next start recovers this session
+            }
+        } catch (Exception ex) {
+            System.out.println("⚠️ Auto-save failed: " + ex.getMessage());
+        }
+        autosaver.close();
+        stopClock();
+        closeJournal();
+    }
+
+    /**
+     * Trades are journaled as they happen, so a save only forces the journal
+     * and writes current state. Waits until the file is on disk.
+     */
+    private void save() throws Exception {
+        autosaver.submit(captureForSave());
+        autosaver.flush();
+        deleteStaleJournals();
+    }
+
+    /**
+     * Cheap copy of the state to save, taken on the market's writer so the
+     * market is not captured mid-tick; the saver thread forces the journal
+     * up to the captured trade count, then encodes and writes the image.
+     */
+    private SaveImage captureForSave() throws Exception {
+        SaveData data = new SaveData(portfolio, market);
+        return onMarketThread(() -> SaveImage.capture(data));
+    }
+
+    /**
+     * Prices to read on this thread: the market itself when it ticks here
+     * (no copy, and lazy columns stay lazy), else the clock's published
+     * snapshot.
+     */
+    private PriceSource prices() {
+        return (clock == null) ? market : market.snapshot();
+    }
+
+    /** Runs {@code task} on the market's writer: the clock thread if one runs, else inline. */
+    private <T> T onMarketThread(Callable<T> task) throws Exception {
+        return (clock == null) ? task.call() : clock.call(task);
+    }
+
+    /** Incremental valuation needs ticks and fills on one thread, so only without a clock. */
+    private void trackValuation() {
+        if (clock == null) new ValuationIndex(market).track(portfolio);
+    }
+
+    /** Unhooks the alert book and valuation index before the market or portfolio they serve is replaced. */
+    private void detachListeners() {
+        alerts.close();
+        if (portfolio.valuation != null) portfolio.valuation.close();
+    }
+
+    private static Path journalFile(Portfolio p) {
+        return Path.of("portfolio-" + Long.toHexString(p.journalId()) + ".journal");
+    }
+
+    private void openJournal() {
+        closeJournal();
+        try {
+            journal = new TransactionJournal(journalFile(portfolio));
+            portfolio.attachJournal(journal);
+        } catch (IOException ex) {
+            System.out.println("⚠️ Trade journal unavailable, keeping recent trades in memory only: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Opens the write-ahead log. A snapshot left behind means the last
+     * session did not exit cleanly, so it is recovered (snapshot plus log
+     * tail) instead of starting fresh. Either way a checkpoint follows, which
+     * becomes the recovery base for this session.
+     */
+    private void openWal() {
+        SaveData recovered = null;
+        try {
+            wal = new WriteAheadLog(Path.of(WAL_FILE), Path.of(SNAPSHOT_FILE), SNAPSHOT_EVERY);
+            if (WAL_SYNC) wal.enableGroupCommit(COMMIT_BATCH, COMMIT_FLUSH_MICROS);
+            recovered = wal.loadSnapshot();
+            if (recovered != null) {
+                detachListeners();
+                portfolio = recovered.portfolio;
+                market = recovered.market;
+                alerts = new AlertBook(market);
+            }
+        } catch (IOException | ClassNotFoundException ex) {
+            System.out.println("⚠️ Write-ahead log unavailable, changes are kept until the next save only: " + ex.getMessage());
+            wal = null;
+        }
+        openJournal();
+        if (wal == null) return;
+        try {
+            if (recovered != null) {
+                int replayed = wal.replay(portfolio, market);
+                System.out.println("♻️ Recovered unsaved session (" + replayed + " logged changes replayed)");
+            }
+            portfolio.attachWal(wal);
+            checkpoint();
+        } catch (Exception ex) {
+            System.out.println("⚠️ Write-ahead log unavailable, changes are kept until the next save only: " + ex.getMessage());
+            portfolio.attachWal(null);
+            wal = null;
+        }
+    }
+
+    private void checkpoint() throws Exception {
+        if (journal != null) journal.force();
+        SaveData data = new SaveData(portfolio, market);
+        onMarketThread(() -> { wal.checkpoint(data); return null; });
+    }
+
+    private void closeJournal() {
+        try {
+            if (journal != null) journal.close();
+        } catch (IOException ignored) { }
+        journal = null;
+    }
+
+    /** The save file only references the saved portfolio's journal; others are unreachable. */
+    private void deleteStaleJournals() throws IOException {
+        Path keep = journalFile(portfolio);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Path.of("."), JOURNAL_GLOB)) {
+            for (Path f : files) if (!f.getFileName().equals(keep)) Files.deleteIfExists(f);
+        }
+    }
+
+    private void startClock() {
+        if (CLOCK_HZ > 0) clock = new MarketClock(market, CLOCK_HZ);
+    }
+
+    private void stopClock() {
+        if (clock != null) clock.close();
+        clock = null;
     }
 
     private boolean yes() {
@@ -380,6 +5016,10 @@ public class StockTradingplatform {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            Bench.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         new StockTradingplatform().run();
     }
 }